@@ -1,5 +1,6 @@
 import com.beust.jcommander.IParameterValidator;
 import com.beust.jcommander.ParameterException;
+import java.nio.file.Path;
 import java.util.List;
 
 public class CLIUtils {
@@ -7,6 +8,15 @@ public class CLIUtils {
         return list.get(list.size() - 1);
     }
 
+    // Resolves a file argument against the caller's working directory. Standard input ("-") belongs to the
+    // process that parsed the arguments, so it cannot be forwarded.
+    public static String resolve(Path cwd, String file) throws ParameterException {
+        if (file.equals("-")) {
+            throw new ParameterException("Standard input and output are not available");
+        }
+        return cwd.resolve(file).toString();
+    }
+
     public static class GradebookFileNameValidator implements IParameterValidator {
         public void validate(String name, String value) throws ParameterException {
             if (!value.matches("[a-zA-Z_.]+")) {
@@ -1,298 +1,767 @@
 import at.favre.lib.bytes.Bytes;
+import com.beust.jcommander.ParameterException;
 import java.io.*;
+import java.nio.channels.*;
 import java.nio.file.*;
 import java.security.*;
-import java.sql.*;
+import java.util.*;
 import javax.crypto.*;
 import javax.crypto.spec.*;
-import org.sqlite.*;
 
 public class Gradebook {
     private final String name;
     private SecretKey key;
-    private Connection db;
+    private GradebookFile file;
+    private GradebookFile.Aead aead;
+    // Whether saves write the compressed format.
+    private boolean compressed;
+    private FileChannel lock;
+    private GradebookBackend backend;
+    private boolean readOnly;
+    private boolean modified;
+    private boolean modifiedBeforeBegin;
+    private GradebookOutput output;
+    private GradebookLog log;
+    // Encoded mutations that are not on disk yet, when changes are logged; null when every save is a snapshot.
+    private List<byte[]> pending;
+    private int pendingBeforeBegin;
+    // Set when the next save must be a full snapshot, e.g. after an import or a migration.
+    private boolean snapshot;
 
     private Gradebook(String name) {
         this.name = name;
         this.key = null;
-        this.db = null;
+        this.file = null;
+        this.aead = null;
+        this.compressed = false;
+        this.lock = null;
+        this.backend = null;
+        this.readOnly = false;
+        this.modified = false;
+        this.modifiedBeforeBegin = false;
+        this.output = null;
+        this.log = null;
+        this.pending = null;
+        this.pendingBeforeBegin = 0;
+        this.snapshot = false;
     }
 
+    // Opcodes of the mutations recorded in the log.
+    private static final byte ADD_ASSIGNMENT = 1;
+    private static final byte DELETE_ASSIGNMENT = 2;
+    private static final byte ADD_STUDENT = 3;
+    private static final byte DELETE_STUDENT = 4;
+    private static final byte ADD_GRADE = 5;
+
+    // How large the log may grow before the next save folds it into a new snapshot, in bytes. Override with
+    // -Dgradebook.logLimit=<bytes>.
+    private static final long DEFAULT_LOG_LIMIT = 1 << 20;
+
     public static class AppError extends Exception {
     }
 
+    // A failure of the storage underneath a book. It carries the exception that caused it, if any, so that the
+    // stack trace and the metrics can tell what went wrong.
     public static class BackendError extends Exception {
+        public BackendError() {
+        }
+
+        public BackendError(Throwable cause) {
+            super(cause);
+        }
+    }
+
+    // An invalid line in an imported file.
+    public static class LineError extends AppError {
+        public final long line;
+
+        public LineError(long line) {
+            this.line = line;
+        }
+    }
+
+    public record AssignmentGrade(String lastName, String firstName, int grade) {
+    }
+
+    public record StudentGrade(String assignmentName, int grade) {
+    }
+
+    public record FinalGrade(String lastName, String firstName, double totalGrade) {
     }
 
+    // New books use SQLite unless -Dgradebook.backend=columnar asks for the in-memory columnar engine, and are
+    // sealed with ChaCha20-Poly1305 unless -Dgradebook.cipher=aes asks for AES-256-GCM. Existing books always open
+    // with the backend and cipher they were created with. Writers append their changes to the book's log
+    // instead of rewriting it when -Dgradebook.log=true. Books are saved trimmed and compressed when
+    // -Dgradebook.compress=true, uncompressed when it is false, and as they already are when it is unset. Every
+    // save of a compressed book rewrites the whole file.
     public static String create(String name) throws AppError, BackendError {
-        if (new File(name).exists()) {
+        // Everything that can be checked without the lock is, so that a name already taken or a bad option leaves no
+        // lock file behind. The name is checked again under the lock in case another writer created it meanwhile.
+        String backend = System.getProperty("gradebook.backend", "sqlite");
+        if (new File(name).exists() || !(backend.equals("sqlite") || backend.equals("columnar"))) {
             throw new AppError();
         }
+        Gradebook gbook = new Gradebook(name);
+        gbook.aead = GradebookFile.Aead.configured();
+        gbook.compressed = GradebookFile.compression(false);
 
+        gbook.lock = GradebookFile.lock(Paths.get(name));
         try {
-            Gradebook gbook = new Gradebook(name);
-            gbook.db = DriverManager.getConnection("jdbc:sqlite:" + name);
-
-            gbook.db.prepareStatement(
-                    "CREATE TABLE assignments(assignmentID INTEGER PRIMARY KEY AUTOINCREMENT, assignmentName TEXT NOT NULL UNIQUE, points INTEGER NOT NULL, weight REAL NOT NULL);")
-                    .execute();
-
-            gbook.db.prepareStatement(
-                    "CREATE TRIGGER validate_total_assignment_weights BEFORE INSERT ON assignments BEGIN SELECT CASE WHEN (SELECT SUM(weight) FROM assignments) + NEW.weight > 1.0 THEN RAISE (ABORT, \"Assignment weights above 1.0\") END; END;")
-                    .execute();
+            if (new File(name).exists()) {
+                throw new AppError();
+            }
+            gbook.backend = backend.equals("sqlite") ? GradebookSqlite.create() : GradebookColumns.create();
+        } catch (AppError | BackendError e) {
+            gbook.unlock();
+            throw e;
+        }
+        gbook.modified = true;
+        gbook.snapshot = true;
 
-            gbook.db.prepareStatement(
-                    "CREATE TABLE students(studentID INTEGER PRIMARY KEY AUTOINCREMENT, firstName TEXT NOT NULL, lastName TEXT NOT NULL, UNIQUE(firstName, lastName));")
-                    .execute();
+        byte[] bkey = GradebookFile.generateKey().getEncoded();
+        gbook.key = new SecretKeySpec(bkey, "ChaCha20");
+        gbook.log = GradebookLog.open(Paths.get(name), gbook.key, gbook.aead, null, new ArrayList<byte[]>());
 
-            gbook.db.prepareStatement(
-                    "CREATE TABLE grades(gradeID INTEGER PRIMARY KEY AUTOINCREMENT, studentID INTEGER NOT NULL, assignmentID INTEGER NOT NULL, grade INTEGER NOT NULL,"
-                            + "FOREIGN KEY (studentID) REFERENCES students (studentID) ON DELETE CASCADE, FOREIGN KEY (assignmentID) REFERENCES assignments (assignmentID) ON DELETE CASCADE,"
-                            + "UNIQUE(studentID, assignmentID));")
-                    .execute();
+        gbook.save_and_encrypt();
 
-            gbook.db.prepareStatement(
-                    "CREATE TRIGGER validate_grade BEFORE UPDATE ON grades BEGIN SELECT CASE WHEN NEW.grade > (SELECT points FROM assignments WHERE assignmentID = NEW.assignmentID) THEN RAISE (ABORT, \"Grade above assignment points\") END; END;")
-                    .execute();
+        return Bytes.wrap(bkey).encodeHex();
+    }
 
-            KeyGenerator keyGen = KeyGenerator.getInstance("ChaCha20");
-            keyGen.init(256, SecureRandom.getInstanceStrong());
-            byte[] bkey = keyGen.generateKey().getEncoded();
-            gbook.key = new SecretKeySpec(bkey, "ChaCha20");
+    // The book only ever lives in memory; it is serialized and encrypted straight to disk, and only if a command
+    // actually changed it. Only pages that differ from the file are re-encrypted.
+    public void save_and_encrypt() throws BackendError {
+        try {
+            flush();
+        } finally {
+            close();
+        }
+    }
 
-            gbook.save_and_encrypt();
+    // Writes any changes to disk but keeps the gradebook open. When changes are logged, the mutations since the
+    // last flush are appended to the log as one record, so they survive a crash together or not at all; once the
+    // log outgrows its limit, the next flush writes a snapshot instead and starts a new log.
+    public void flush() throws BackendError {
+        if (this.readOnly || !this.modified) {
+            return;
+        }
 
-            return Bytes.wrap(bkey).encodeHex();
-        } catch (NoSuchAlgorithmException | SQLException ignored) {
-            throw new BackendError();
+        if (this.pending != null && !this.snapshot && this.file != null && this.file.id() != null
+                && this.log.size() < Long.getLong("gradebook.logLimit", DEFAULT_LOG_LIMIT)) {
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            for (byte[] mutation : this.pending) {
+                payload.writeBytes(mutation);
+            }
+            this.log.append(payload.toByteArray());
+        } else {
+            long started = GradebookMetrics.start(GradebookMetrics.Phase.SERIALIZE);
+            if (this.compressed) {
+                this.backend.trim();
+            }
+            byte[] data = this.backend.serialize();
+            GradebookMetrics.stop(GradebookMetrics.Phase.SERIALIZE, started, data.length);
+            int pageSize = this.backend.pageSize();
+            if (this.file == null) {
+                this.file = GradebookFile.create(Paths.get(this.name), this.key, this.aead, data, pageSize,
+                        this.compressed);
+            } else {
+                this.file.save(data, pageSize, this.compressed);
+            }
+            this.log.reset(this.aead, this.file.id());
+            this.snapshot = false;
+        }
+        if (this.pending != null) {
+            this.pending.clear();
         }
+        this.modified = false;
     }
 
-    public void save_and_encrypt() throws BackendError {
+    // Moves the book called name from key to newKey without loading it: the file is re-encrypted a page at a time
+    // and replaced in one rename, holding the writer lock throughout. A book with a log, or in an older file format,
+    // is loaded and saved under the new key instead, which folds the log into the new file.
+    public static void rekey(String name, String key, String newKey) throws AppError, BackendError {
+        if (!new File(name).exists()) {
+            throw new AppError();
+        }
+
+        Path path = Paths.get(name);
+        boolean streamed = false;
+        FileChannel lock = GradebookFile.lock(path);
         try {
-            this.db.close();
+            if (!Files.exists(path.resolveSibling(path.getFileName() + ".log"))) {
+                streamed = GradebookFile.rekey(path, new SecretKeySpec(Bytes.parseHex(key).array(), "ChaCha20"),
+                        new SecretKeySpec(Bytes.parseHex(newKey).array(), "ChaCha20"));
+            }
+        } finally {
+            try {
+                lock.close();
+            } catch (IOException e) {
+                throw new BackendError(e);
+            }
+        }
+        if (streamed) {
+            return;
+        }
 
-            Path file = Paths.get(this.name);
+        Gradebook gbook = load_and_decrypt(name, key);
+        try {
+            gbook.rekey(newKey);
+        } finally {
+            gbook.close();
+        }
+    }
 
-            byte[] nonce = new byte[12];
-            SecureRandom.getInstanceStrong().nextBytes(nonce);
+    // Re-encrypts the book under key, a new hex key, and starts a new log. The file is replaced in one rename, so
+    // after a crash it is under either the old key or the new one; the caller must keep both until this returns.
+    public void rekey(String key) throws BackendError {
+        if (this.readOnly) {
+            throw new BackendError();
+        }
 
-            Cipher cipher = Cipher.getInstance("ChaCha20-Poly1305");
-            IvParameterSpec iv = new IvParameterSpec(nonce);
-            cipher.init(Cipher.ENCRYPT_MODE, this.key, iv);
+        this.key = new SecretKeySpec(Bytes.parseHex(key).array(), "ChaCha20");
+        try {
+            this.log.close();
+            this.log = GradebookLog.open(Paths.get(this.name), this.key, this.aead, null, new ArrayList<byte[]>());
+        } catch (AppError e) {
+            throw new BackendError(e);
+        }
+        this.file = null;
+        this.modified = true;
+        this.snapshot = true;
+        flush();
+    }
 
-            byte[] data = Files.readAllBytes(file);
-            byte[] out = cipher.doFinal(data);
+    // Closes the book and, for a writer, lets the next writer in.
+    public void close() throws BackendError {
+        try {
+            if (this.backend != null) {
+                this.backend.close();
+            }
+        } finally {
+            try {
+                if (this.log != null) {
+                    this.log.close();
+                }
+            } finally {
+                unlock();
+            }
+        }
+    }
 
-            Files.write(file, nonce);
-            Files.write(file, out, StandardOpenOption.APPEND);
-        } catch (IOException | InvalidAlgorithmParameterException | InvalidKeyException | NoSuchAlgorithmException
-                | SQLException | NoSuchPaddingException | IllegalBlockSizeException | BadPaddingException ignored) {
-            throw new BackendError();
+    private void unlock() throws BackendError {
+        if (this.lock == null) {
+            return;
+        }
+        try {
+            this.lock.close();
+            this.lock = null;
+        } catch (IOException e) {
+            throw new BackendError(e);
         }
     }
 
+    public String name() {
+        return this.name;
+    }
+
+    public boolean isModified() {
+        return this.modified;
+    }
+
     public static Gradebook load_and_decrypt(String name, String key) throws AppError, BackendError {
+        return load_and_decrypt(name, key, false);
+    }
+
+    // A writer holds the gradebook's lock until it is closed, so a concurrent writer waits for it and then loads
+    // what it saved instead of overwriting it. A read-only gradebook takes no lock: it reads whichever complete
+    // version is on disk, rejects every mutation and never writes the file back. Either way, the changes in the
+    // book's log are replayed on top of the file.
+    public static Gradebook load_and_decrypt(String name, String key, boolean readOnly)
+            throws AppError, BackendError {
         if (!new File(name).exists()) {
             throw new AppError();
         }
 
-        try {
-            Gradebook gbook = new Gradebook(name);
-            byte[] bkey = Bytes.parseHex(key).array();
-            gbook.key = new SecretKeySpec(bkey, "ChaCha20");
+        Gradebook gbook = load(name, key, readOnly);
+        while (gbook == null) {
+            gbook = load(name, key, readOnly);
+        }
+        return gbook;
+    }
 
-            Path file = Paths.get(name);
+    // Returns null if the book is read-only and was saved again while it was being read, so that it has to be read
+    // again: a writer that folds the log saves a new file and then starts the log afresh, and a reader that took the
+    // file from before the fold and the log from after it would miss every folded change.
+    private static Gradebook load(String name, String key, boolean readOnly) throws AppError, BackendError {
+        Gradebook gbook = new Gradebook(name);
+        byte[] bkey = Bytes.parseHex(key).array();
+        gbook.key = new SecretKeySpec(bkey, "ChaCha20");
+        if (!readOnly) {
+            gbook.lock = GradebookFile.lock(Paths.get(name));
+        }
 
-            byte[] data = Files.readAllBytes(file);
-            if (data.length < 12) {
-                throw new AppError();
+        try {
+            gbook.file = GradebookFile.open(Paths.get(name), gbook.key);
+            byte[] data = gbook.file.data();
+            long started = GradebookMetrics.start(GradebookMetrics.Phase.OPEN);
+            if (GradebookColumns.matches(data)) {
+                gbook.backend = GradebookColumns.load(data);
+            } else {
+                gbook.backend = GradebookSqlite.load(data);
             }
 
-            Cipher cipher = Cipher.getInstance("ChaCha20-Poly1305");
-            IvParameterSpec iv = new IvParameterSpec(data, 0, 12);
-            cipher.init(Cipher.DECRYPT_MODE, gbook.key, iv);
-
-            byte[] out = cipher.doFinal(data, 12, data.length - 12);
-            Files.write(file, out);
+            if (!readOnly) {
+                gbook.modified = gbook.backend.migrate();
+                // A book that is to change format is rewritten even if nothing else changes.
+                gbook.compressed = GradebookFile.compression(gbook.file.compressed());
+                gbook.modified |= gbook.compressed != gbook.file.compressed();
+                gbook.snapshot = gbook.modified;
+                if (Boolean.getBoolean("gradebook.log")) {
+                    gbook.pending = new ArrayList<byte[]>();
+                }
+            }
+            GradebookMetrics.stop(GradebookMetrics.Phase.OPEN, started, data.length);
+
+            started = GradebookMetrics.start(GradebookMetrics.Phase.REPLAY);
+            List<byte[]> records = new ArrayList<byte[]>();
+            gbook.aead = gbook.file.aead();
+            try {
+                gbook.log = GradebookLog.open(Paths.get(name), gbook.key, gbook.aead, gbook.file.id(), readOnly,
+                        records);
+            } catch (AppError e) {
+                if (readOnly && gbook.file.replaced()) {
+                    gbook.close();
+                    return null;
+                }
+                throw e;
+            }
+            if (readOnly && gbook.file.replaced()) {
+                gbook.close();
+                return null;
+            }
+            if (!records.isEmpty()) {
+                gbook.backend.begin();
+                for (byte[] record : records) {
+                    gbook.replay(record);
+                }
+                gbook.backend.commit();
+            }
+            GradebookMetrics.stop(GradebookMetrics.Phase.REPLAY, started, gbook.log.size());
+            // An old log is folded into a new snapshot rather than appended to.
+            if (!readOnly && gbook.log.legacy()) {
+                gbook.modified = true;
+                gbook.snapshot = true;
+            }
 
-            gbook.db = DriverManager.getConnection("jdbc:sqlite:" + name);
-            return gbook;
-        } catch (IOException | NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException
-                | InvalidAlgorithmParameterException | IllegalBlockSizeException ignored) {
-            throw new BackendError();
-        } catch (BadPaddingException | SQLException ignored) {
-            throw new AppError();
+            if (readOnly) {
+                gbook.backend.readOnly();
+                gbook.readOnly = true;
+                gbook.file = null;
+                gbook.log = null;
+            }
+        } catch (AppError | BackendError e) {
+            try {
+                gbook.close();
+            } catch (BackendError closeError) {
+                e.addSuppressed(closeError);
+            }
+            throw e;
         }
+        return gbook;
     }
 
-    public void addAssignment(String name, int points, double weight) throws AppError, BackendError {
+    // The book as it stands, in the form fromImage() reads. Must not run while another thread changes the book.
+    public byte[] image() throws BackendError {
+        return this.backend.serialize();
+    }
+
+    // A read-only book over an image() of another. It shares nothing with the book it was taken from, so it can be
+    // queried on another thread while that one keeps changing; it never sees those changes, takes no lock and never
+    // touches the file.
+    public static Gradebook fromImage(String name, byte[] image) throws BackendError {
+        Gradebook gbook = new Gradebook(name);
         try {
-            PreparedStatement sql = this.db
-                    .prepareStatement("INSERT INTO assignments (assignmentName, points, weight) VALUES (?1, ?2, ?3);");
-            sql.setString(1, name);
-            sql.setInt(2, points);
-            sql.setDouble(3, weight);
-            sql.execute();
-
-            sql = this.db.prepareStatement(
-                    "INSERT INTO grades (studentID, assignmentID, grade) SELECT studentID, (SELECT assignmentID from assignments WHERE assignmentName = ?1), 0 FROM students;");
-            sql.setString(1, name);
-            sql.execute();
-        } catch (SQLiteException e) {
-            if (e.getResultCode() == SQLiteErrorCode.SQLITE_CONSTRAINT_UNIQUE
-                    || e.getResultCode() == SQLiteErrorCode.SQLITE_CONSTRAINT_TRIGGER) {
-                throw new AppError();
+            if (GradebookColumns.matches(image)) {
+                gbook.backend = GradebookColumns.load(image);
             } else {
-                throw new BackendError();
+                gbook.backend = GradebookSqlite.load(image);
             }
-        } catch (SQLException ignored) {
-            throw new BackendError();
+        } catch (AppError e) {
+            throw new BackendError(e);
         }
+        gbook.backend.readOnly();
+        gbook.readOnly = true;
+        return gbook;
     }
 
-    public void deleteAssignment(String name) throws AppError, BackendError {
+    public interface Mutation {
+        void apply(Gradebook gbook) throws AppError, BackendError;
+    }
+
+    // Groups all following mutations into one transaction until commit() or rollback().
+    public void begin() throws BackendError {
+        this.backend.begin();
+        this.modifiedBeforeBegin = this.modified;
+        this.pendingBeforeBegin = this.pending == null ? 0 : this.pending.size();
+    }
+
+    public void commit() throws BackendError {
+        this.backend.commit();
+    }
+
+    public void rollback() throws BackendError {
+        this.backend.rollback();
+        this.modified = this.modifiedBeforeBegin;
+        forget(this.pendingBeforeBegin);
+    }
+
+    // Applies mutation inside the current transaction so that, if it fails, none of its statements take effect.
+    public void atomically(Mutation mutation) throws AppError, BackendError {
+        boolean modified = this.modified;
+        int pending = this.pending == null ? 0 : this.pending.size();
+        this.backend.savepoint();
+
         try {
-            PreparedStatement sql = this.db.prepareStatement("DELETE FROM assignments WHERE assignmentName = ?1;");
-            sql.setString(1, name);
-            if (sql.executeUpdate() == 0) {
-                throw new AppError();
-            }
-        } catch (SQLException ignored) {
-            throw new BackendError();
+            mutation.apply(this);
+            this.backend.releaseSavepoint();
+        } catch (AppError | BackendError | RuntimeException e) {
+            this.backend.rollbackToSavepoint();
+            this.modified = modified;
+            forget(pending);
+            throw e;
         }
     }
 
+    public void addAssignment(String name, int points, double weight) throws AppError, BackendError {
+        long started = GradebookMetrics.start(GradebookMetrics.Phase.EXECUTE);
+        this.backend.addAssignment(name, points, weight);
+        GradebookMetrics.stop(GradebookMetrics.Phase.EXECUTE, started);
+        this.modified = true;
+        record(out -> {
+            out.writeByte(ADD_ASSIGNMENT);
+            out.writeUTF(name);
+            out.writeInt(points);
+            out.writeDouble(weight);
+        });
+    }
+
+    public void deleteAssignment(String name) throws AppError, BackendError {
+        long started = GradebookMetrics.start(GradebookMetrics.Phase.EXECUTE);
+        this.backend.deleteAssignment(name);
+        GradebookMetrics.stop(GradebookMetrics.Phase.EXECUTE, started);
+        this.modified = true;
+        record(out -> {
+            out.writeByte(DELETE_ASSIGNMENT);
+            out.writeUTF(name);
+        });
+    }
+
     public void addStudent(String firstName, String lastName) throws AppError, BackendError {
-        try {
-            PreparedStatement sql = this.db
-                    .prepareStatement("INSERT INTO students (firstName, lastName) VALUES (?1, ?2);");
-            sql.setString(1, firstName);
-            sql.setString(2, lastName);
-            sql.execute();
-
-            sql = this.db.prepareStatement(
-                    "INSERT INTO grades (studentID, assignmentID, grade) SELECT (SELECT studentID from students WHERE firstName = ?1 AND lastName = ?2), assignmentID, 0 FROM assignments;");
-            sql.setString(1, firstName);
-            sql.setString(2, lastName);
-            sql.execute();
-        } catch (SQLiteException e) {
-            if (e.getResultCode() == SQLiteErrorCode.SQLITE_CONSTRAINT_UNIQUE) {
-                throw new AppError();
-            } else {
-                throw new BackendError();
-            }
-        } catch (SQLException ignored) {
-            throw new BackendError();
-        }
+        long started = GradebookMetrics.start(GradebookMetrics.Phase.EXECUTE);
+        this.backend.addStudent(firstName, lastName);
+        GradebookMetrics.stop(GradebookMetrics.Phase.EXECUTE, started);
+        this.modified = true;
+        record(out -> {
+            out.writeByte(ADD_STUDENT);
+            out.writeUTF(firstName);
+            out.writeUTF(lastName);
+        });
     }
 
     public void deleteStudent(String firstName, String lastName) throws AppError, BackendError {
-        try {
-            PreparedStatement sql = this.db
-                    .prepareStatement("DELETE FROM students WHERE firstName = ?1 AND lastName = ?2;");
-            sql.setString(1, firstName);
-            sql.setString(2, lastName);
-            if (sql.executeUpdate() == 0) {
-                throw new AppError();
-            }
-        } catch (SQLException ignored) {
-            throw new BackendError();
-        }
+        long started = GradebookMetrics.start(GradebookMetrics.Phase.EXECUTE);
+        this.backend.deleteStudent(firstName, lastName);
+        GradebookMetrics.stop(GradebookMetrics.Phase.EXECUTE, started);
+        this.modified = true;
+        record(out -> {
+            out.writeByte(DELETE_STUDENT);
+            out.writeUTF(firstName);
+            out.writeUTF(lastName);
+        });
     }
 
     public void addGrade(String studentFirstName, String studentLastName, String assignmentName, int grade)
             throws AppError, BackendError {
-        try {
-            PreparedStatement sql = this.db.prepareStatement(
-                    "UPDATE grades SET grade = ?1 WHERE studentID = (SELECT studentID FROM students WHERE firstName = ?2 AND lastName = ?3) AND assignmentID = (SELECT assignmentID FROM assignments WHERE assignmentName = ?4);");
-            sql.setInt(1, grade);
-            sql.setString(2, studentFirstName);
-            sql.setString(3, studentLastName);
-            sql.setString(4, assignmentName);
-            if (sql.executeUpdate() == 0) {
-                throw new AppError();
-            }
-        } catch (SQLiteException e) {
-            if (e.getResultCode() == SQLiteErrorCode.SQLITE_CONSTRAINT_TRIGGER) {
-                throw new AppError();
-            } else {
-                throw new BackendError();
+        long started = GradebookMetrics.start(GradebookMetrics.Phase.EXECUTE);
+        this.backend.addGrade(studentFirstName, studentLastName, assignmentName, grade);
+        GradebookMetrics.stop(GradebookMetrics.Phase.EXECUTE, started);
+        this.modified = true;
+        record(out -> {
+            out.writeByte(ADD_GRADE);
+            out.writeUTF(studentFirstName);
+            out.writeUTF(studentLastName);
+            out.writeUTF(assignmentName);
+            out.writeInt(grade);
+        });
+    }
+
+    private interface Encoder {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    // Queues a mutation that has just been applied for the next flush, if changes are logged.
+    private void record(Encoder encoder) throws BackendError {
+        if (this.pending == null) {
+            return;
+        }
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(buffer)) {
+            encoder.write(out);
+        } catch (IOException e) {
+            throw new BackendError(e);
+        }
+        this.pending.add(buffer.toByteArray());
+    }
+
+    // Drops the mutations queued after the first count, once they have been rolled back.
+    private void forget(int count) {
+        if (this.pending != null && this.pending.size() > count) {
+            this.pending.subList(count, this.pending.size()).clear();
+        }
+    }
+
+    // Applies the mutations of one log record. They were valid when they were logged, so one that fails now means
+    // the log does not belong to this book.
+    private void replay(byte[] record) throws BackendError {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(record))) {
+            while (in.available() > 0) {
+                switch (in.readByte()) {
+                    case ADD_ASSIGNMENT -> this.backend.addAssignment(in.readUTF(), in.readInt(), in.readDouble());
+                    case DELETE_ASSIGNMENT -> this.backend.deleteAssignment(in.readUTF());
+                    case ADD_STUDENT -> this.backend.addStudent(in.readUTF(), in.readUTF());
+                    case DELETE_STUDENT -> this.backend.deleteStudent(in.readUTF(), in.readUTF());
+                    case ADD_GRADE -> this.backend.addGrade(in.readUTF(), in.readUTF(), in.readUTF(), in.readInt());
+                    default -> throw new BackendError();
+                }
             }
-        } catch (SQLException ignored) {
-            throw new BackendError();
+        } catch (AppError | IOException e) {
+            throw new BackendError(e);
         }
     }
 
+    // Every grade for an assignment, by student name or highest grade first.
+    public GradebookCursor<AssignmentGrade> assignmentGrades(String name, boolean alphabetical_or_grade_order)
+            throws AppError, BackendError {
+        return this.backend.assignmentGrades(name, alphabetical_or_grade_order);
+    }
+
+    // At most limit grades for an assignment, starting after the last row of the previous page (null for the first
+    // page). Grade order breaks ties by name so that pages neither overlap nor skip rows.
+    public GradebookCursor<AssignmentGrade> assignmentGrades(String name, boolean alphabetical_or_grade_order,
+            AssignmentGrade after, int limit) throws AppError, BackendError {
+        return this.backend.assignmentGrades(name, alphabetical_or_grade_order, after, limit);
+    }
+
+    // Every grade of a student, in assignment order.
+    public GradebookCursor<StudentGrade> studentGrades(String firstName, String lastName)
+            throws AppError, BackendError {
+        return this.backend.studentGrades(firstName, lastName);
+    }
+
+    // Every student's final grade, by name or highest grade first. A student without any counted grade has 0.0.
+    public GradebookCursor<FinalGrade> finalGrades(boolean alphabetical_or_grade_order) throws BackendError {
+        return this.backend.finalGrades(alphabetical_or_grade_order);
+    }
+
+    // At most limit final grades, starting after the last row of the previous page (null for the first page).
+    // Grade order breaks ties by name so that pages neither overlap nor skip rows.
+    public GradebookCursor<FinalGrade> finalGrades(boolean alphabetical_or_grade_order, FinalGrade after, int limit)
+            throws BackendError {
+        return this.backend.finalGrades(alphabetical_or_grade_order, after, limit);
+    }
+
     public void printAssignmentGrades(String name, boolean alphabetical_or_grade_order) throws AppError, BackendError {
-        try {
-            PreparedStatement sql = this.db
-                    .prepareStatement("SELECT assignmentID FROM assignments WHERE assignmentName = ?1;");
-            sql.setString(1, name);
-            ResultSet row = sql.executeQuery();
-            if (!row.isBeforeFirst()) {
-                throw new AppError();
+        printAssignmentGrades(name, alphabetical_or_grade_order, System.out);
+    }
+
+    public void printAssignmentGrades(String name, boolean alphabetical_or_grade_order, OutputStream out)
+            throws AppError, BackendError {
+        long started = GradebookMetrics.start(GradebookMetrics.Phase.EXECUTE);
+        try (GradebookCursor<AssignmentGrade> grades = assignmentGrades(name, alphabetical_or_grade_order)) {
+            GradebookOutput rows = output(out);
+            while (grades.hasNext()) {
+                AssignmentGrade grade = grades.next();
+                rows.beginRow();
+                rows.field(grade.lastName());
+                rows.field(grade.firstName());
+                rows.field(grade.grade());
+                rows.endRow();
             }
-            int assignmentID = row.getInt(1);
+            rows.flush();
+            GradebookMetrics.stop(GradebookMetrics.Phase.EXECUTE, started);
+        } catch (GradebookCursor.Failure failure) {
+            throw failure.getCause();
+        } catch (IOException e) {
+            throw new BackendError(e);
+        }
+    }
+
+    public void printStudentGrades(String firstName, String lastName) throws AppError, BackendError {
+        printStudentGrades(firstName, lastName, System.out);
+    }
 
-            String order = "lastName, firstName";
-            if (!alphabetical_or_grade_order) {
-                order = "grade DESC";
+    public void printStudentGrades(String firstName, String lastName, OutputStream out) throws AppError, BackendError {
+        long started = GradebookMetrics.start(GradebookMetrics.Phase.EXECUTE);
+        try (GradebookCursor<StudentGrade> grades = studentGrades(firstName, lastName)) {
+            GradebookOutput rows = output(out);
+            while (grades.hasNext()) {
+                StudentGrade grade = grades.next();
+                rows.beginRow();
+                rows.field(grade.assignmentName());
+                rows.field(grade.grade());
+                rows.endRow();
             }
+            rows.flush();
+            GradebookMetrics.stop(GradebookMetrics.Phase.EXECUTE, started);
+        } catch (GradebookCursor.Failure failure) {
+            throw failure.getCause();
+        } catch (IOException e) {
+            throw new BackendError(e);
+        }
+    }
+
+    public void printFinalGrades(boolean alphabetical_or_grade_order) throws BackendError {
+        printFinalGrades(alphabetical_or_grade_order, System.out);
+    }
 
-            sql = this.db.prepareStatement("SELECT lastName, firstName, grade FROM grades "
-                    + "INNER JOIN students ON grades.studentID = students.studentID "
-                    + "WHERE assignmentID = ?1 ORDER BY " + order + ";");
-            sql.setInt(1, assignmentID);
-            row = sql.executeQuery();
-            while (row.next()) {
-                System.out.println("(" + row.getString(1) + ", " + row.getString(2) + ", " + row.getInt(3) + ")");
+    public void printFinalGrades(boolean alphabetical_or_grade_order, OutputStream out) throws BackendError {
+        long started = GradebookMetrics.start(GradebookMetrics.Phase.EXECUTE);
+        try (GradebookCursor<FinalGrade> grades = finalGrades(alphabetical_or_grade_order)) {
+            GradebookOutput rows = output(out);
+            while (grades.hasNext()) {
+                FinalGrade grade = grades.next();
+                rows.beginRow();
+                rows.field(grade.lastName());
+                rows.field(grade.firstName());
+                rows.field(grade.totalGrade());
+                rows.endRow();
             }
-        } catch (SQLException ignored) {
-            throw new BackendError();
+            rows.flush();
+            GradebookMetrics.stop(GradebookMetrics.Phase.EXECUTE, started);
+        } catch (GradebookCursor.Failure failure) {
+            throw failure.getCause();
+        } catch (IOException e) {
+            throw new BackendError(e);
         }
     }
 
-    public void printStudentGrades(String firstName, String lastName) throws AppError, BackendError {
+    // Summaries of every assignment, in assignment order, followed by one of the final grades. The grades are read
+    // into primitive columns first and summarized in parallel unless parallel is false.
+    public List<GradebookStatistics.Summary> statistics(boolean parallel) throws BackendError {
+        return this.backend.statistics(parallel);
+    }
+
+    // Prints two rows per assignment and two for the final grades:
+    //   (<name>, <count>, <mean>, <standard deviation>, <min>, <25th>, <median>, <75th>, <90th percentile>, <max>)
+    //   (<name> histogram, <count in 0-10% of full marks>, ..., <count in 90-100%>)
+    // where the final grades are named "final grades".
+    public void printStatistics(OutputStream out) throws BackendError {
+        long started = GradebookMetrics.start(GradebookMetrics.Phase.EXECUTE);
         try {
-            PreparedStatement sql = this.db
-                    .prepareStatement("SELECT studentID FROM students WHERE firstName = ?1 AND lastName = ?2;");
-            sql.setString(1, firstName);
-            sql.setString(2, lastName);
-            ResultSet row = sql.executeQuery();
-            if (!row.isBeforeFirst()) {
-                throw new AppError();
-            }
-            int studentID = row.getInt(1);
-
-            sql = this.db.prepareStatement(
-                    "SELECT assignmentName, grade FROM grades INNER JOIN assignments ON grades.assignmentID = assignments.assignmentID WHERE studentID = ?1;");
-            sql.setInt(1, studentID);
-            row = sql.executeQuery();
-            while (row.next()) {
-                System.out.println("(" + row.getString(1) + ", " + row.getInt(2) + ")");
+            GradebookOutput rows = output(out);
+            for (GradebookStatistics.Summary summary : statistics(true)) {
+                rows.beginRow();
+                rows.field(summary.name());
+                rows.field(summary.count());
+                for (double value : new double[] { summary.mean(), summary.stddev(), summary.min(), summary.p25(),
+                        summary.median(), summary.p75(), summary.p90(), summary.max() }) {
+                    rows.field(value);
+                }
+                rows.endRow();
+
+                rows.beginRow();
+                rows.field(summary.name() + " histogram");
+                for (int bucket : summary.histogram()) {
+                    rows.field(bucket);
+                }
+                rows.endRow();
             }
-        } catch (SQLException ignored) {
+            rows.flush();
+            GradebookMetrics.stop(GradebookMetrics.Phase.EXECUTE, started);
+        } catch (IOException e) {
+            throw new BackendError(e);
+        }
+    }
+
+    // Runs sql and discards any rows it returns, returning how many there were. Used by GradebookBench.
+    long drain(String sql) throws BackendError {
+        return sqlite().drain(sql);
+    }
+
+    // The steps of SQLite's plan for sql, one per line, indented by depth. Used by GradebookBench.
+    List<String> queryPlan(String sql) throws BackendError {
+        return sqlite().queryPlan(sql);
+    }
+
+    private GradebookSqlite sqlite() throws BackendError {
+        if (!(this.backend instanceof GradebookSqlite)) {
             throw new BackendError();
         }
+        return (GradebookSqlite) this.backend;
     }
 
-    public void printFinalGrades(boolean alphabetical_or_grade_order) throws BackendError {
-        try {
-            String order = "lastName, firstName";
-            if (!alphabetical_or_grade_order) {
-                order = "totalGrade DESC";
-            }
+    // The display methods share one buffer per gradebook; callers on different threads already hold the book
+    // exclusively.
+    private GradebookOutput output(OutputStream out) {
+        if (this.output == null) {
+            this.output = new GradebookOutput();
+        }
+        return this.output.to(out);
+    }
 
-            PreparedStatement sql = this.db.prepareStatement(
-                    "SELECT lastname, firstName, (SELECT SUM((CAST(grade AS REAL) / points) * weight) FROM grades INNER JOIN assignments ON grades.assignmentID = assignments.assignmentID WHERE grades.studentID = students.studentID) AS totalGrade FROM students ORDER BY "
-                            + order + ";");
-            ResultSet row = sql.executeQuery();
-            while (row.next()) {
-                System.out.println("(" + row.getString(1) + ", " + row.getString(2) + ", " + row.getDouble(3) + ")");
+    // Recomputes every total from the grades and prints each student whose stored total differs, as
+    // (last name, first name, stored, computed), along with stored totals of students that no longer exist.
+    // Returns the number of mismatches.
+    public int checkFinalGrades(PrintStream out) throws BackendError {
+        return this.backend.checkFinalGrades(out);
+    }
+
+    // Imports rows of the form
+    //   assignment,<name>,<points>,<weight>
+    //   student,<first name>,<last name>
+    //   grade,<first name>,<last name>,<assignment name>,<grade>
+    // subject to the same rules as the command line. Rows may only refer to students and assignments that already
+    // exist or appear earlier in the input, and new students and assignments start with every grade at 0 as usual.
+    // The whole import is one transaction: any invalid row leaves the gradebook untouched.
+    public void importCsv(BufferedReader in) throws AppError, BackendError {
+        this.backend.importCsv(in);
+        this.modified = true;
+        this.snapshot = true;
+    }
+
+    // Splits one line of an import and checks each field as the command line would, returning null for a blank
+    // line. Whether the names it refers to exist is left to the backend.
+    static String[] csvRow(String line, long number) throws LineError {
+        if (line.isEmpty()) {
+            return null;
+        }
+
+        try {
+            String[] fields = line.split(",", -1);
+            if (fields[0].equals("assignment") && fields.length == 4) {
+                new CLIUtils.AssignmentNameValidator().validate("name", fields[1]);
+                new CLIUtils.NonNegativeIntegerValidator().validate("points", fields[2]);
+                new CLIUtils.AssignmentWeightValidator().validate("weight", fields[3]);
+            } else if (fields[0].equals("student") && fields.length == 3) {
+                new CLIUtils.StudentNameValidator().validate("first name", fields[1]);
+                new CLIUtils.StudentNameValidator().validate("last name", fields[2]);
+            } else if (fields[0].equals("grade") && fields.length == 5) {
+                new CLIUtils.StudentNameValidator().validate("first name", fields[1]);
+                new CLIUtils.StudentNameValidator().validate("last name", fields[2]);
+                new CLIUtils.AssignmentNameValidator().validate("assignment", fields[3]);
+                new CLIUtils.NonNegativeIntegerValidator().validate("grade", fields[4]);
+            } else {
+                throw new LineError(number);
             }
-        } catch (SQLException ignored) {
-            throw new BackendError();
+            return fields;
+        } catch (ParameterException ignored) {
+            throw new LineError(number);
         }
     }
+
+    // Writes every assignment, student and grade in the format read by importCsv, streaming straight from the
+    // backend.
+    public void exportCsv(Writer out) throws BackendError {
+        this.backend.exportCsv(out);
+    }
 }
@@ -2,7 +2,10 @@ import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.ParameterException;
 import com.beust.jcommander.Parameters;
+import java.io.*;
+import java.nio.file.*;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class GradebookAdd {
@@ -57,80 +60,200 @@ public class GradebookAdd {
         private List<String> grade = new ArrayList<String>();
     }
 
+    @Parameters(commandDescription = "Run add and delete commands from a file, one per line, in a single transaction")
+    private static class BatchCommand {
+        @Parameter(names = "-F", description = "Batch file, or - for standard input", required = true)
+        private List<String> file = new ArrayList<String>();
+
+        @Parameter(names = "-E", description = "Skip failing lines instead of rolling back the whole batch")
+        private boolean bestEffort;
+    }
+
+    @Parameters(commandDescription = "Import assignments, students and grades from CSV")
+    private static class ImportCommand {
+        @Parameter(names = "-F", description = "CSV file, or - for standard input", required = true)
+        private List<String> file = new ArrayList<String>();
+    }
+
     @Parameter(names = "-N", description = "Gradebook filename", validateWith = CLIUtils.GradebookFileNameValidator.class, required = true)
-    private String gradebook;
+    String gradebook;
 
     @Parameter(names = "-K", description = "Encryption/Decryption key", validateWith = CLIUtils.KeyValidator.class, required = true)
-    private String key;
+    String key;
 
-    public static void main(String[] args) {
-        int exitCode = 0;
-        Gradebook gbook = null;
+    private final AddAssignmentCommand aa = new AddAssignmentCommand();
+    private final DeleteAssignmentCommand da = new DeleteAssignmentCommand();
+    private final AddStudentCommand as = new AddStudentCommand();
+    private final DeleteStudentCommand ds = new DeleteStudentCommand();
+    private final AddGradeCommand ag = new AddGradeCommand();
+    private final BatchCommand b = new BatchCommand();
+    private final ImportCommand im = new ImportCommand();
+    private String command;
 
-        try {
-            GradebookAdd app = new GradebookAdd();
-            AddAssignmentCommand aa = new AddAssignmentCommand();
-            DeleteAssignmentCommand da = new DeleteAssignmentCommand();
-            AddStudentCommand as = new AddStudentCommand();
-            DeleteStudentCommand ds = new DeleteStudentCommand();
-            AddGradeCommand ag = new AddGradeCommand();
-
-            JCommander cmd = JCommander.newBuilder().addObject(app).addCommand("-AA", aa).addCommand("-DA", da)
-                    .addCommand("-AS", as).addCommand("-DS", ds).addCommand("-AG", ag).build();
-            cmd.parse(args);
-
-            if (!(args[0].equals("-N") && args[2].equals("-K"))) {
-                throw new ParameterException("Wrong flag order");
-            }
-            if (cmd.getParsedCommand() == null) {
-                throw new ParameterException("No action specified");
-            }
+    static GradebookAdd parse(String[] args) throws ParameterException {
+        GradebookAdd app = new GradebookAdd();
 
-            gbook = Gradebook.load_and_decrypt(app.gradebook, app.key);
+        JCommander cmd = JCommander.newBuilder().addObject(app).addCommand("-AA", app.aa).addCommand("-DA", app.da)
+                .addCommand("-AS", app.as).addCommand("-DS", app.ds).addCommand("-AG", app.ag).addCommand("-B", app.b)
+                .addCommand("-IM", app.im).build();
+        cmd.parse(args);
+
+        if (!(args[0].equals("-N") && args[2].equals("-K"))) {
+            throw new ParameterException("Wrong flag order");
+        }
+        if (cmd.getParsedCommand() == null) {
+            throw new ParameterException("No action specified");
+        }
 
-            if (cmd.getParsedCommand().equals("-AA")) {
-                new CLIUtils.AssignmentNameValidator().validate("-AN", CLIUtils.getLast(aa.assignmentName));
-                new CLIUtils.NonNegativeIntegerValidator().validate("-P", CLIUtils.getLast(aa.points));
-                new CLIUtils.AssignmentWeightValidator().validate("-W", CLIUtils.getLast(aa.weight));
+        app.command = cmd.getParsedCommand();
+        return app;
+    }
 
-                gbook.addAssignment(CLIUtils.getLast(aa.assignmentName), Integer.parseInt(CLIUtils.getLast(aa.points)),
-                        Double.parseDouble(CLIUtils.getLast(aa.weight)));
-            }
+    // Input files are named relative to the caller, which for the daemon is not the current directory.
+    void resolve(Path cwd) throws ParameterException {
+        if (this.command.equals("-B")) {
+            b.file.add(CLIUtils.resolve(cwd, CLIUtils.getLast(b.file)));
+        }
+        if (this.command.equals("-IM")) {
+            im.file.add(CLIUtils.resolve(cwd, CLIUtils.getLast(im.file)));
+        }
+    }
 
-            if (cmd.getParsedCommand().equals("-DA")) {
-                new CLIUtils.AssignmentNameValidator().validate("-AN", CLIUtils.getLast(da.assignmentName));
+    void apply(Gradebook gbook, PrintStream out) throws Gradebook.AppError, Gradebook.BackendError {
+        if (this.command.equals("-AA")) {
+            new CLIUtils.AssignmentNameValidator().validate("-AN", CLIUtils.getLast(aa.assignmentName));
+            new CLIUtils.NonNegativeIntegerValidator().validate("-P", CLIUtils.getLast(aa.points));
+            new CLIUtils.AssignmentWeightValidator().validate("-W", CLIUtils.getLast(aa.weight));
 
-                gbook.deleteAssignment(CLIUtils.getLast(da.assignmentName));
-            }
+            gbook.addAssignment(CLIUtils.getLast(aa.assignmentName), Integer.parseInt(CLIUtils.getLast(aa.points)),
+                    Double.parseDouble(CLIUtils.getLast(aa.weight)));
+        }
 
-            if (cmd.getParsedCommand().equals("-AS")) {
-                new CLIUtils.StudentNameValidator().validate("-FN", CLIUtils.getLast(as.studentFirstName));
-                new CLIUtils.StudentNameValidator().validate("-LN", CLIUtils.getLast(as.studentLastName));
+        if (this.command.equals("-DA")) {
+            new CLIUtils.AssignmentNameValidator().validate("-AN", CLIUtils.getLast(da.assignmentName));
 
-                gbook.addStudent(CLIUtils.getLast(as.studentFirstName), CLIUtils.getLast(as.studentLastName));
-            }
+            gbook.deleteAssignment(CLIUtils.getLast(da.assignmentName));
+        }
+
+        if (this.command.equals("-AS")) {
+            new CLIUtils.StudentNameValidator().validate("-FN", CLIUtils.getLast(as.studentFirstName));
+            new CLIUtils.StudentNameValidator().validate("-LN", CLIUtils.getLast(as.studentLastName));
+
+            gbook.addStudent(CLIUtils.getLast(as.studentFirstName), CLIUtils.getLast(as.studentLastName));
+        }
+
+        if (this.command.equals("-DS")) {
+            new CLIUtils.StudentNameValidator().validate("-FN", CLIUtils.getLast(ds.studentFirstName));
+            new CLIUtils.StudentNameValidator().validate("-LN", CLIUtils.getLast(ds.studentLastName));
+
+            gbook.deleteStudent(CLIUtils.getLast(ds.studentFirstName), CLIUtils.getLast(ds.studentLastName));
+        }
 
-            if (cmd.getParsedCommand().equals("-DS")) {
-                new CLIUtils.StudentNameValidator().validate("-FN", CLIUtils.getLast(ds.studentFirstName));
-                new CLIUtils.StudentNameValidator().validate("-LN", CLIUtils.getLast(ds.studentLastName));
+        if (this.command.equals("-AG")) {
+            new CLIUtils.StudentNameValidator().validate("-FN", CLIUtils.getLast(ag.studentFirstName));
+            new CLIUtils.StudentNameValidator().validate("-LN", CLIUtils.getLast(ag.studentLastName));
+            new CLIUtils.AssignmentNameValidator().validate("-AN", CLIUtils.getLast(ag.assignmentName));
+            new CLIUtils.NonNegativeIntegerValidator().validate("-G", CLIUtils.getLast(ag.grade));
 
-                gbook.deleteStudent(CLIUtils.getLast(ds.studentFirstName), CLIUtils.getLast(ds.studentLastName));
+            gbook.addGrade(CLIUtils.getLast(ag.studentFirstName), CLIUtils.getLast(ag.studentLastName),
+                    CLIUtils.getLast(ag.assignmentName), Integer.parseInt(CLIUtils.getLast(ag.grade)));
+        }
+
+        if (this.command.equals("-B")) {
+            applyBatch(gbook, out);
+        }
+
+        if (this.command.equals("-IM")) {
+            String file = CLIUtils.getLast(im.file);
+            try (BufferedReader in = file.equals("-") ? new BufferedReader(new InputStreamReader(System.in), 1 << 16)
+                    : Files.newBufferedReader(Paths.get(file))) {
+                gbook.importCsv(in);
+            } catch (Gradebook.LineError lineError) {
+                out.println(lineError.line + ": invalid");
+                throw lineError;
+            } catch (NoSuchFileException ignored) {
+                throw new Gradebook.AppError();
+            } catch (IOException e) {
+                throw new Gradebook.BackendError(e);
             }
+        }
+    }
+
+    // Every line is a command in the usual syntax without -N and -K, and is applied all or nothing. Failing lines
+    // are reported by line number. By default the first failure rolls back the whole batch; with -E the remaining
+    // lines are still applied and committed. Either way a failure makes the command as a whole invalid.
+    private void applyBatch(Gradebook gbook, PrintStream out) throws Gradebook.AppError, Gradebook.BackendError {
+        String file = CLIUtils.getLast(b.file);
+        boolean failed = false;
+        boolean committed = false;
+
+        gbook.begin();
+        try (BufferedReader in = file.equals("-") ? new BufferedReader(new InputStreamReader(System.in))
+                : Files.newBufferedReader(Paths.get(file))) {
+            int number = 0;
+            String line;
+            while ((line = in.readLine()) != null && (b.bestEffort || !failed)) {
+                number++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+
+                try {
+                    List<String> args = new ArrayList<String>(Arrays.asList("-N", this.gradebook, "-K", this.key));
+                    args.addAll(Arrays.asList(line.split("\\s+")));
+                    GradebookAdd op = parse(args.toArray(new String[0]));
+                    if (op.command.equals("-B") || op.command.equals("-IM")) {
+                        throw new ParameterException("Batches cannot contain batches or imports");
+                    }
 
-            if (cmd.getParsedCommand().equals("-AG")) {
-                new CLIUtils.StudentNameValidator().validate("-FN", CLIUtils.getLast(ag.studentFirstName));
-                new CLIUtils.StudentNameValidator().validate("-LN", CLIUtils.getLast(ag.studentLastName));
-                new CLIUtils.AssignmentNameValidator().validate("-AN", CLIUtils.getLast(ag.assignmentName));
-                new CLIUtils.NonNegativeIntegerValidator().validate("-G", CLIUtils.getLast(ag.grade));
+                    gbook.atomically(g -> op.apply(g, out));
+                } catch (ParameterException | Gradebook.AppError appError) {
+                    out.println(number + ": invalid");
+                    failed = true;
+                } catch (Gradebook.BackendError backendError) {
+                    backendError.printStackTrace();
+                    out.println(number + ": error");
+                    failed = true;
+                }
+            }
 
-                gbook.addGrade(CLIUtils.getLast(ag.studentFirstName), CLIUtils.getLast(ag.studentLastName),
-                        CLIUtils.getLast(ag.assignmentName), Integer.parseInt(CLIUtils.getLast(ag.grade)));
+            if (!failed || b.bestEffort) {
+                gbook.commit();
+                committed = true;
+            }
+        } catch (NoSuchFileException ignored) {
+            throw new Gradebook.AppError();
+        } catch (IOException e) {
+            throw new Gradebook.BackendError(e);
+        } finally {
+            if (!committed) {
+                gbook.rollback();
             }
+        }
+
+        if (failed) {
+            throw new Gradebook.AppError();
+        }
+    }
+
+    public static void main(String[] args) {
+        int exitCode = 0;
+        Gradebook gbook = null;
+        Exception failure = null;
+        GradebookMetrics.begin("add");
+
+        try {
+            GradebookAdd app = parse(args);
+            gbook = Gradebook.load_and_decrypt(app.gradebook, app.key);
+            app.apply(gbook, System.out);
         } catch (ParameterException | Gradebook.AppError appError) {
             System.out.println("invalid");
             exitCode = 255;
+            failure = appError;
         } catch (Gradebook.BackendError backendError) {
             backendError.printStackTrace();
+            failure = backendError;
         }
 
         if (gbook != null) {
@@ -138,9 +261,11 @@ public class GradebookAdd {
                 gbook.save_and_encrypt();
             } catch (Gradebook.BackendError backendError) {
                 backendError.printStackTrace();
+                failure = backendError;
             }
         }
 
+        GradebookMetrics.end(failure);
         System.exit(exitCode);
     }
 }
@@ -0,0 +1,103 @@
+import java.io.*;
+import java.util.*;
+
+// The storage engine behind a Gradebook. A backend holds the whole book in memory and turns it into the plaintext
+// that GradebookFile encrypts; Gradebook itself owns the file, the key and whether anything needs saving. Every
+// backend enforces the same rules as the SQLite schema: total weight at most 1.0, grades at most the assignment's
+// points, and deleting a student or assignment drops its grades.
+public interface GradebookBackend {
+    byte[] serialize() throws Gradebook.BackendError;
+
+    // The unit GradebookFile encrypts in, so that a small change only rewrites the pages it touched.
+    int pageSize() throws Gradebook.BackendError;
+
+    void close() throws Gradebook.BackendError;
+
+    // Brings a book written by an older version up to date, returning whether anything changed.
+    boolean migrate() throws Gradebook.BackendError;
+
+    // Rejects every mutation from now on.
+    void readOnly() throws Gradebook.BackendError;
+
+    // Drops free space from what serialize() returns, before a compressed save.
+    void trim() throws Gradebook.BackendError;
+
+    void begin() throws Gradebook.BackendError;
+
+    void commit() throws Gradebook.BackendError;
+
+    void rollback() throws Gradebook.BackendError;
+
+    // Savepoints nest: release and rollback apply to the most recent one still open.
+    void savepoint() throws Gradebook.BackendError;
+
+    void releaseSavepoint() throws Gradebook.BackendError;
+
+    void rollbackToSavepoint() throws Gradebook.BackendError;
+
+    void addAssignment(String name, int points, double weight) throws Gradebook.AppError, Gradebook.BackendError;
+
+    void deleteAssignment(String name) throws Gradebook.AppError, Gradebook.BackendError;
+
+    void addStudent(String firstName, String lastName) throws Gradebook.AppError, Gradebook.BackendError;
+
+    void deleteStudent(String firstName, String lastName) throws Gradebook.AppError, Gradebook.BackendError;
+
+    void addGrade(String studentFirstName, String studentLastName, String assignmentName, int grade)
+            throws Gradebook.AppError, Gradebook.BackendError;
+
+    GradebookCursor<Gradebook.AssignmentGrade> assignmentGrades(String name, boolean alphabetical_or_grade_order)
+            throws Gradebook.AppError, Gradebook.BackendError;
+
+    GradebookCursor<Gradebook.AssignmentGrade> assignmentGrades(String name, boolean alphabetical_or_grade_order,
+            Gradebook.AssignmentGrade after, int limit) throws Gradebook.AppError, Gradebook.BackendError;
+
+    GradebookCursor<Gradebook.StudentGrade> studentGrades(String firstName, String lastName)
+            throws Gradebook.AppError, Gradebook.BackendError;
+
+    GradebookCursor<Gradebook.FinalGrade> finalGrades(boolean alphabetical_or_grade_order)
+            throws Gradebook.BackendError;
+
+    GradebookCursor<Gradebook.FinalGrade> finalGrades(boolean alphabetical_or_grade_order, Gradebook.FinalGrade after,
+            int limit) throws Gradebook.BackendError;
+
+    List<GradebookStatistics.Summary> statistics(boolean parallel) throws Gradebook.BackendError;
+
+    int checkFinalGrades(PrintStream out) throws Gradebook.BackendError;
+
+    void importCsv(BufferedReader in) throws Gradebook.AppError, Gradebook.BackendError;
+
+    void exportCsv(Writer out) throws Gradebook.BackendError;
+
+    // SQLite's SUM of REAL values: Kahan-Babuska-Neumaier compensated summation, NULL (here NaN) for no values. Checks
+    // that have to agree with SUM in a query or trigger add the same values in the same order through this.
+    class Sum {
+        private double sum;
+        private double error;
+        private boolean empty;
+
+        public Sum() {
+            this.sum = 0.0;
+            this.error = 0.0;
+            this.empty = true;
+        }
+
+        public void add(double value) {
+            double next = this.sum + value;
+            if (Math.abs(this.sum) > Math.abs(value)) {
+                this.error += (this.sum - next) + value;
+            } else {
+                this.error += (value - next) + this.sum;
+            }
+            this.sum = next;
+            this.empty = false;
+        }
+
+        public double value() {
+            if (this.empty) {
+                return Double.NaN;
+            }
+            return Double.isFinite(this.error) ? this.sum + this.error : this.sum;
+        }
+    }
+}
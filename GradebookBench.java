@@ -0,0 +1,604 @@
+import java.io.*;
+import java.lang.management.*;
+import java.nio.*;
+import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import javax.crypto.*;
+
+// Micro benchmarks for the gradebook hot paths. Run with `make bench BENCH="<benchmark> [iterations]"`, or the
+// whole operation suite with `make benchsuite`.
+public class GradebookBench {
+    private static final int WARMUP = 20;
+
+    public static void main(String[] args) throws Exception {
+        String bench = args.length > 0 ? args[0] : "all";
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+        Path dir = Files.createTempDirectory("gradebook-bench");
+        try {
+            if (bench.equals("nonce") || bench.equals("all")) {
+                benchNonce(iterations);
+            }
+            if (bench.equals("save") || bench.equals("all")) {
+                benchSave(dir, iterations);
+            }
+            if (bench.equals("ops") || bench.equals("all")) {
+                benchOperations(dir, iterations);
+            }
+            if (bench.equals("queries") || bench.equals("all")) {
+                benchQueries(dir, iterations);
+            }
+            if (bench.equals("final") || bench.equals("all")) {
+                benchFinalGrades(dir, iterations);
+            }
+            if (bench.equals("stats") || bench.equals("all")) {
+                benchStatistics(dir, iterations);
+            }
+            if (bench.equals("cipher") || bench.equals("all")) {
+                benchCipher(dir, iterations);
+            }
+            if (bench.equals("readers") || bench.equals("all")) {
+                benchReaders(dir, iterations);
+            }
+            if (bench.equals("suite")) {
+                benchSuite(dir, iterations);
+            }
+        } finally {
+            for (File f : dir.toFile().listFiles()) {
+                f.delete();
+            }
+            dir.toFile().delete();
+        }
+    }
+
+    // Cost of drawing a save's nonces from a fresh strong instance, as every save used to, versus the shared
+    // process-wide generator.
+    private static void benchNonce(int iterations) throws Exception {
+        byte[] nonce = new byte[12];
+        report("nonce/strong-per-save", time(iterations, () -> SecureRandom.getInstanceStrong().nextBytes(nonce)));
+
+        SecureRandom shared = new SecureRandom();
+        report("nonce/shared", time(iterations, () -> shared.nextBytes(nonce)));
+    }
+
+    // A load/add-grade/save cycle that re-encrypts only the changed pages, against the same cycle saved the way
+    // every save used to be, by encrypting the whole book into a new file, and the same cycle appending to the
+    // book's log instead. All run once to warm up the JIT before the measured pass.
+    private static void benchSave(Path dir, int iterations) throws Exception {
+        String name = dir.resolve("save").toString();
+        String key = generate(name, 500, 20);
+
+        int[] grade = { 0 };
+        for (int pass = 0; pass < 2; pass++) {
+            long[] full = time(iterations, () -> {
+                Gradebook gbook = Gradebook.load_and_decrypt(name, key);
+                try {
+                    gbook.addGrade(studentName(0), "Student", assignmentName(0), grade[0]++ % 100);
+                    gbook.rekey(key);
+                } finally {
+                    gbook.close();
+                }
+            });
+            long[] pages = time(iterations, () -> {
+                Gradebook gbook = Gradebook.load_and_decrypt(name, key);
+                gbook.addGrade(studentName(0), "Student", assignmentName(0), grade[0]++ % 100);
+                gbook.save_and_encrypt();
+            });
+            String logging = System.getProperty("gradebook.log");
+            System.setProperty("gradebook.log", "true");
+            long[] logged = time(iterations, () -> {
+                Gradebook gbook = Gradebook.load_and_decrypt(name, key);
+                gbook.addGrade(studentName(0), "Student", assignmentName(0), grade[0]++ % 100);
+                gbook.save_and_encrypt();
+            });
+            if (logging == null) {
+                System.clearProperty("gradebook.log");
+            } else {
+                System.setProperty("gradebook.log", logging);
+            }
+            if (pass == 1) {
+                report("save/add-grade-full-rewrite", full);
+                report("save/add-grade", pages);
+                report("save/add-grade-logged", logged);
+            }
+        }
+
+        // A save copies the whole ciphertext before patching the changed pages into it; this is that copy alone.
+        Path file = Paths.get(name);
+        Path copy = dir.resolve("save.copy");
+        report("save/copy-file",
+                time(iterations, () -> Files.copy(file, copy, StandardCopyOption.REPLACE_EXISTING)));
+    }
+
+    // Per-operation throughput on an open gradebook with the default statement cache and pragma profile, with
+    // statements re-prepared on every call, and with SQLite's default pragmas. Every configuration runs once to
+    // warm up the JIT before the measured pass.
+    private static void benchOperations(Path dir, int iterations) throws Exception {
+        String name = dir.resolve("ops").toString();
+        String key = generate(name, 500, 20);
+        PrintStream sink = new PrintStream(OutputStream.nullOutputStream());
+        String[][] configs = { { "cached", "true", null }, { "uncached", "false", null },
+                { "sqlite-pragmas", "true", "" } };
+
+        for (int pass = 0; pass < 2; pass++) {
+            for (String[] config : configs) {
+                System.setProperty("gradebook.reuseStatements", config[1]);
+                if (config[2] == null) {
+                    System.clearProperty("gradebook.pragmas");
+                } else {
+                    System.setProperty("gradebook.pragmas", config[2]);
+                }
+
+                Gradebook gbook = Gradebook.load_and_decrypt(name, key);
+                int[] n = { 0 };
+                Map<String, long[]> results = new LinkedHashMap<String, long[]>();
+                results.put("add-grade", time(iterations * 10,
+                        () -> gbook.addGrade(studentName(n[0] % 500), "Student", assignmentName(n[0]++ % 20), 50)));
+                results.put("add-delete-student", time(iterations, () -> {
+                    gbook.addStudent("Bench", "Student");
+                    gbook.deleteStudent("Bench", "Student");
+                }));
+                results.put("print-student", time(iterations * 10,
+                        () -> gbook.printStudentGrades(studentName(n[0]++ % 500), "Student", sink)));
+                results.put("print-assignment",
+                        time(iterations, () -> gbook.printAssignmentGrades(assignmentName(n[0]++ % 20), false, sink)));
+                results.put("print-final", time(iterations, () -> gbook.printFinalGrades(false, sink)));
+                gbook.close();
+
+                if (pass == 1) {
+                    for (Map.Entry<String, long[]> result : results.entrySet()) {
+                        report(config[0] + "/" + result.getKey(), result.getValue());
+                    }
+                }
+            }
+        }
+        System.clearProperty("gradebook.reuseStatements");
+        System.clearProperty("gradebook.pragmas");
+    }
+
+    private static final String FINAL_GRADES_QUERY = "SELECT lastname, firstName, (SELECT SUM((CAST(grade AS REAL) / points) * weight) FROM grades INNER JOIN assignments ON grades.assignmentID = assignments.assignmentID WHERE grades.studentID = students.studentID) AS totalGrade FROM students ORDER BY totalGrade DESC;";
+
+    // The same totals as one grouped join. SQLite runs it as the same per-student index search plus an aggregate
+    // step, so it is kept here for comparison rather than used by printFinalGrades.
+    private static final String GROUPED_FINAL_GRADES_QUERY = "SELECT lastName, firstName, SUM((CAST(grade AS REAL) / points) * weight) AS totalGrade FROM students LEFT JOIN grades ON grades.studentID = students.studentID LEFT JOIN assignments ON grades.assignmentID = assignments.assignmentID GROUP BY students.studentID ORDER BY totalGrade DESC;";
+
+    private static final String ASSIGNMENT_GRADES_QUERY = "SELECT lastName, firstName, grade FROM grades INNER JOIN students ON grades.studentID = students.studentID WHERE assignmentID = 1 ORDER BY grade DESC;";
+
+    // Query plans and latency of the display queries on a 10k student by 200 assignment book, with and without
+    // the grades(assignmentID) index, and of the final grade query against its grouped join form.
+    private static void benchQueries(Path dir, int iterations) throws Exception {
+        String name = dir.resolve("queries").toString();
+        String key = generate(name, 10000, 200);
+        Gradebook gbook = Gradebook.load_and_decrypt(name, key);
+
+        gbook.drain("DROP INDEX grades_assignmentID;");
+        plan(gbook, "assignment/scan", ASSIGNMENT_GRADES_QUERY);
+        report("assignment/scan", time(iterations, () -> gbook.drain(ASSIGNMENT_GRADES_QUERY)));
+        gbook.drain("CREATE INDEX grades_assignmentID ON grades(assignmentID);");
+        plan(gbook, "assignment/index", ASSIGNMENT_GRADES_QUERY);
+        report("assignment/index", time(iterations, () -> gbook.drain(ASSIGNMENT_GRADES_QUERY)));
+
+        plan(gbook, "final/correlated", FINAL_GRADES_QUERY);
+        report("final/correlated", time(iterations / 10, () -> gbook.drain(FINAL_GRADES_QUERY)));
+        plan(gbook, "final/grouped", GROUPED_FINAL_GRADES_QUERY);
+        report("final/grouped", time(iterations / 10, () -> gbook.drain(GROUPED_FINAL_GRADES_QUERY)));
+        gbook.close();
+    }
+
+    // End of term: final grades are printed over and over while the odd grade is still corrected. Compares reading
+    // the maintained totals with recomputing them, and the cost the maintenance adds to each grade change.
+    private static void benchFinalGrades(Path dir, int iterations) throws Exception {
+        String name = dir.resolve("final").toString();
+        String key = generate(name, 10000, 200);
+        Gradebook gbook = Gradebook.load_and_decrypt(name, key);
+        PrintStream sink = new PrintStream(OutputStream.nullOutputStream());
+        Random random = new Random(42);
+
+        report("final/recompute", time(iterations / 10, () -> gbook.drain(FINAL_GRADES_QUERY)));
+        report("final/materialized", time(iterations, () -> gbook.printFinalGrades(false, sink)));
+        report("final/add-grade", time(iterations * 10, () -> gbook.addGrade(studentName(random.nextInt(10000)),
+                "Student", assignmentName(random.nextInt(200)), random.nextInt(101))));
+        report("final/end-of-term", time(iterations, () -> {
+            gbook.addGrade(studentName(random.nextInt(10000)), "Student", assignmentName(random.nextInt(200)),
+                    random.nextInt(101));
+            for (int i = 0; i < 10; i++) {
+                gbook.printFinalGrades(false, sink);
+            }
+        }));
+        gbook.close();
+    }
+
+    // The same summaries in SQL alone: moments by GROUP BY, percentiles by ranking each assignment's grades with
+    // window functions, histograms by grouping on the bucket.
+    private static final String[] SQL_STATISTICS = {
+            "SELECT grades.assignmentID, COUNT(*), AVG(grade), sqrt(AVG(grade * grade) - AVG(grade) * AVG(grade)) FROM grades INNER JOIN students ON grades.studentID = students.studentID GROUP BY grades.assignmentID;",
+            "SELECT assignmentID, rank, grade FROM (SELECT grades.assignmentID, grade, ROW_NUMBER() OVER (PARTITION BY grades.assignmentID ORDER BY grade) AS rank, COUNT(*) OVER (PARTITION BY grades.assignmentID) AS n FROM grades INNER JOIN students ON grades.studentID = students.studentID) "
+                    + "WHERE rank IN (1, (n + 3) / 4, (n + 1) / 2, (3 * n + 3) / 4, (9 * n + 9) / 10, n);",
+            "SELECT grades.assignmentID, MIN(9, grade * 10 / points) AS bucket, COUNT(*) FROM grades INNER JOIN students ON grades.studentID = students.studentID INNER JOIN assignments ON grades.assignmentID = assignments.assignmentID GROUP BY 1, 2;",
+            "SELECT COUNT(*), AVG(totalGrade), sqrt(AVG(totalGrade * totalGrade) - AVG(totalGrade) * AVG(totalGrade)) FROM finalGrades;",
+            "SELECT rank, totalGrade FROM (SELECT totalGrade, ROW_NUMBER() OVER (ORDER BY totalGrade) AS rank, COUNT(*) OVER () AS n FROM finalGrades) "
+                    + "WHERE rank IN (1, (n + 3) / 4, (n + 1) / 2, (3 * n + 3) / 4, (9 * n + 9) / 10, n);",
+            "SELECT MIN(9, CAST(totalGrade * 10 AS INTEGER)) AS bucket, COUNT(*) FROM finalGrades GROUP BY 1;" };
+
+    // Class statistics on a 10k student by 200 assignment book (2M grades): the columnar summaries in parallel and
+    // on one thread, including reading the columns, against computing the same figures in SQL.
+    private static void benchStatistics(Path dir, int iterations) throws Exception {
+        String name = dir.resolve("stats").toString();
+        String key = generate(name, 10000, 200);
+        Gradebook gbook = Gradebook.load_and_decrypt(name, key);
+
+        report("stats/parallel", time(iterations / 10, () -> gbook.statistics(true)));
+        report("stats/serial", time(iterations / 10, () -> gbook.statistics(false)));
+        report("stats/sql", time(iterations / 10, () -> {
+            for (String sql : SQL_STATISTICS) {
+                gbook.drain(sql);
+            }
+        }));
+        gbook.close();
+    }
+
+    private static final int CIPHER_PAGE_SIZE = 4096;
+
+    // Encryption and decryption throughput of each AEAD on 4 KiB pages, as GradebookFile seals them, over files of
+    // 4 KiB to 16 MiB, then the latency of loading a 2k student by 20 assignment book and of saving one grade change
+    // under each. Which cipher wins depends on the CPU, so run this on the machines that will serve the books.
+    private static void benchCipher(Path dir, int iterations) throws Exception {
+        int[] sizes = { 4 << 10, 64 << 10, 1 << 20, 16 << 20 };
+        SecretKey key = GradebookFile.generateKey();
+        Random random = new Random(42);
+
+        for (GradebookFile.Aead aead : GradebookFile.Aead.values()) {
+            Cipher encrypt = aead.cipher();
+            Cipher decrypt = aead.cipher();
+            SecretKey sealKey = aead.key(key);
+            long[] counter = { 0 };
+
+            for (int size : sizes) {
+                int pages = size / CIPHER_PAGE_SIZE;
+                int stride = CIPHER_PAGE_SIZE + 16;
+                byte[] plain = new byte[size];
+                random.nextBytes(plain);
+                // Two sealed copies under different nonces, used in turn: the JDK refuses to initialize a cipher
+                // with the key and nonce it was last initialized with, even to decrypt.
+                byte[][] sealed = new byte[2][pages * stride];
+                byte[][][] nonces = new byte[2][pages][12];
+                byte[] opened = new byte[size];
+                int[] run = { 0 };
+                int runs = Math.max(10, (int) ((long) iterations * (64 << 10) / size));
+
+                String name = "cipher/" + aead.option() + "/" + (size >> 10) + "KiB";
+                report(name + "/encrypt", time(runs, () -> {
+                    int copy = run[0]++ & 1;
+                    for (int p = 0; p < pages; p++) {
+                        ByteBuffer.wrap(nonces[copy][p]).putLong(4, ++counter[0]);
+                        aead.init(encrypt, Cipher.ENCRYPT_MODE, sealKey, nonces[copy][p], 0);
+                        encrypt.updateAAD(ByteBuffer.allocate(8).putLong(p).array());
+                        encrypt.doFinal(plain, p * CIPHER_PAGE_SIZE, CIPHER_PAGE_SIZE, sealed[copy], p * stride);
+                    }
+                }), size);
+                report(name + "/decrypt", time(runs, () -> {
+                    int copy = run[0]++ & 1;
+                    for (int p = 0; p < pages; p++) {
+                        aead.init(decrypt, Cipher.DECRYPT_MODE, sealKey, nonces[copy][p], 0);
+                        decrypt.updateAAD(ByteBuffer.allocate(8).putLong(p).array());
+                        decrypt.doFinal(sealed[copy], p * stride, stride, opened, p * CIPHER_PAGE_SIZE);
+                    }
+                }), size);
+            }
+        }
+
+        for (GradebookFile.Aead aead : GradebookFile.Aead.values()) {
+            System.setProperty("gradebook.cipher", aead.option());
+            String name = dir.resolve("cipher-" + aead.option()).toString();
+            String bookKey = generate(name, 2000, 20);
+            long bytes = Files.size(Paths.get(name));
+
+            report("cipher/" + aead.option() + "/load", time(iterations, () -> {
+                Gradebook.load_and_decrypt(name, bookKey, true).close();
+            }), bytes);
+            int[] grade = { 0 };
+            report("cipher/" + aead.option() + "/save-add-grade", time(iterations, () -> {
+                Gradebook gbook = Gradebook.load_and_decrypt(name, bookKey);
+                gbook.addGrade(studentName(0), "Student", assignmentName(0), grade[0]++ % 100);
+                gbook.save_and_encrypt();
+            }));
+        }
+        System.clearProperty("gradebook.cipher");
+    }
+
+    // Threads summing final grades from one open 2k student book through GradebookReaders while a writer moves
+    // marks between pairs of students every millisecond. Reports query latency and throughput from one reader
+    // thread to twice the cores; that no query sees part of a move is checked by make test.
+    private static void benchReaders(Path dir, int iterations) throws Exception {
+        String name = dir.resolve("readers").toString();
+        int students = 2000;
+        String key = generate(name, students, 20);
+        int cores = Runtime.getRuntime().availableProcessors();
+        GradebookReaders readers = new GradebookReaders(Gradebook.load_and_decrypt(name, key), 2 * cores);
+
+        readers.write(g -> {
+            for (int s = 0; s < students; s++) {
+                g.addGrade(studentName(s), "Student", assignmentName(0), 50);
+            }
+        });
+
+        for (int threads = 1; threads <= Math.max(2, 2 * cores); threads *= 2) {
+            AtomicBoolean stop = new AtomicBoolean(false);
+            AtomicLong writes = new AtomicLong(0);
+            ExecutorService pool = Executors.newFixedThreadPool(threads + 1);
+            Future<?> writer = pool.submit(() -> {
+                Random random = new Random(42);
+                while (!stop.get()) {
+                    int pair = random.nextInt(students / 2) * 2;
+                    int grade = random.nextInt(101);
+                    readers.write(g -> {
+                        g.addGrade(studentName(pair), "Student", assignmentName(0), grade);
+                        g.addGrade(studentName(pair + 1), "Student", assignmentName(0), 100 - grade);
+                    });
+                    writes.incrementAndGet();
+                    Thread.sleep(1);
+                }
+                return null;
+            });
+            List<Future<long[]>> queries = new ArrayList<Future<long[]>>();
+            for (int t = 0; t < threads; t++) {
+                queries.add(pool.submit(() -> {
+                    long[] samples = new long[1024];
+                    int n = 0;
+                    while (!stop.get()) {
+                        long start = System.nanoTime();
+                        readers.read(g -> sumFinalGrades(g));
+                        if (n == samples.length) {
+                            samples = Arrays.copyOf(samples, 2 * n);
+                        }
+                        samples[n++] = System.nanoTime() - start;
+                    }
+                    return Arrays.copyOf(samples, n);
+                }));
+            }
+
+            long seconds = Math.max(1, iterations / 100);
+            Thread.sleep(seconds * 1000);
+            stop.set(true);
+            writer.get();
+            long[] samples = new long[0];
+            for (Future<long[]> query : queries) {
+                long[] more = query.get();
+                samples = Arrays.copyOf(samples, samples.length + more.length);
+                System.arraycopy(more, 0, samples, samples.length - more.length, more.length);
+            }
+            pool.shutdown();
+
+            report("readers/" + threads + "-threads", samples);
+            System.out.printf("%-36s %10.0f queries/s %8.0f changes/s%n", "", (double) samples.length / seconds,
+                    (double) writes.get() / seconds);
+        }
+        readers.close();
+    }
+
+    private static double sumFinalGrades(Gradebook gbook) throws Gradebook.BackendError {
+        double sum = 0;
+        try (GradebookCursor<Gradebook.FinalGrade> grades = gbook.finalGrades(true)) {
+            while (grades.hasNext()) {
+                sum += grades.next().totalGrade();
+            }
+        } catch (GradebookCursor.Failure failure) {
+            throw failure.getCause();
+        }
+        return sum;
+    }
+
+    // Every public operation of Gradebook on synthetic books of each size in -Dbench.students (comma separated,
+    // default 100,1000,10000) by -Dbench.assignments (default 20), with the fraction -Dbench.density (default 1.0)
+    // of grades filled in and the rest left at 0. Each line reports throughput, latency percentiles and the heap
+    // the operation allocated on this thread, per operation and per second; sqlite's native allocations are not
+    // counted. Operations that grow with the book run fewer times on the larger ones. Each size ends with the
+    // book's compression ratio once trimmed and compressed, and its load and save times in that form.
+    private static void benchSuite(Path dir, int iterations) throws Exception {
+        int assignments = Integer.getInteger("bench.assignments", 20);
+        double density = Double.parseDouble(System.getProperty("bench.density", "1.0"));
+        PrintStream sink = new PrintStream(OutputStream.nullOutputStream());
+
+        int[] created = { 0 };
+        report("suite/create", profile(iterations, () -> {
+            String name = dir.resolve("create" + created[0]++).toString();
+            Gradebook.create(name);
+            Files.delete(Paths.get(name));
+        }));
+
+        for (String size : System.getProperty("bench.students", "100,1000,10000").split(",")) {
+            int students = Integer.parseInt(size.trim());
+            int scaled = Math.max(10, (int) ((long) iterations * 1000 / students));
+            String prefix = "suite/" + students + "x" + assignments + "/";
+            String name = dir.resolve("suite").toString();
+            String key = generate(name, students, assignments, density);
+            System.out.printf("%s file=%d bytes%n", prefix, Files.size(Paths.get(name)));
+
+            report(prefix + "load", profile(scaled, () -> Gradebook.load_and_decrypt(name, key).close()));
+            report(prefix + "load-read-only",
+                    profile(scaled, () -> Gradebook.load_and_decrypt(name, key, true).close()));
+
+            Gradebook gbook = Gradebook.load_and_decrypt(name, key);
+            Random random = new Random(42);
+            report(prefix + "save-one-grade", profile(scaled, () -> {
+                gbook.addGrade(studentName(random.nextInt(students)), "Student",
+                        assignmentName(random.nextInt(assignments)), random.nextInt(101));
+                gbook.flush();
+            }));
+            report(prefix + "rekey", profile(Math.max(10, scaled / 10), () -> gbook.rekey(key)));
+
+            report(prefix + "add-grade", profile(iterations * 10, () -> gbook.addGrade(
+                    studentName(random.nextInt(students)), "Student", assignmentName(random.nextInt(assignments)),
+                    random.nextInt(101))));
+            int[] n = { 0 };
+            report(prefix + "add-student", profile(scaled, () -> gbook.addStudent(studentName(n[0]++), "Bench")));
+            n[0] = 0;
+            report(prefix + "delete-student",
+                    profile(scaled, () -> gbook.deleteStudent(studentName(n[0]++), "Bench")));
+            n[0] = 0;
+            report(prefix + "add-assignment",
+                    profile(scaled, () -> gbook.addAssignment("B" + n[0]++, 100, 0.0)));
+            n[0] = 0;
+            report(prefix + "delete-assignment", profile(scaled, () -> gbook.deleteAssignment("B" + n[0]++)));
+
+            report(prefix + "print-student", profile(iterations * 10,
+                    () -> gbook.printStudentGrades(studentName(random.nextInt(students)), "Student", sink)));
+            for (boolean alphabetical : new boolean[] { true, false }) {
+                String order = alphabetical ? "-by-name" : "-by-grade";
+                report(prefix + "print-assignment" + order, profile(scaled, () -> gbook
+                        .printAssignmentGrades(assignmentName(random.nextInt(assignments)), alphabetical, sink)));
+                report(prefix + "print-final" + order,
+                        profile(scaled, () -> gbook.printFinalGrades(alphabetical, sink)));
+            }
+            report(prefix + "print-statistics",
+                    profile(Math.max(10, scaled / 10), () -> gbook.printStatistics(sink)));
+            gbook.close();
+
+            long plainSize = Files.size(Paths.get(name));
+            System.setProperty("gradebook.compress", "true");
+            Gradebook.load_and_decrypt(name, key).save_and_encrypt();
+            long compressedSize = Files.size(Paths.get(name));
+            System.out.printf("%scompressed file=%d bytes ratio=%.2f%n", prefix, compressedSize,
+                    (double) plainSize / compressedSize);
+            report(prefix + "compressed/load", profile(scaled, () -> Gradebook.load_and_decrypt(name, key).close()));
+            Gradebook compressed = Gradebook.load_and_decrypt(name, key);
+            report(prefix + "compressed/save-one-grade", profile(scaled, () -> {
+                compressed.addGrade(studentName(random.nextInt(students)), "Student",
+                        assignmentName(random.nextInt(assignments)), random.nextInt(101));
+                compressed.flush();
+            }));
+            compressed.close();
+            System.clearProperty("gradebook.compress");
+            Files.deleteIfExists(Paths.get(name));
+        }
+    }
+
+    private static void plan(Gradebook gbook, String name, String sql) throws Exception {
+        System.out.println(name + ":");
+        for (String step : gbook.queryPlan(sql)) {
+            System.out.println("  " + step);
+        }
+    }
+
+    // Builds a gradebook with the given number of students and equally weighted assignments, every grade filled in.
+    static String generate(String name, int students, int assignments) throws Exception {
+        return generate(name, students, assignments, 1.0);
+    }
+
+    // As above, with only the given fraction of grades filled in; the rest stay at 0.
+    static String generate(String name, int students, int assignments, double density) throws Exception {
+        Files.deleteIfExists(Paths.get(name));
+        String key = Gradebook.create(name);
+        Gradebook gbook = Gradebook.load_and_decrypt(name, key);
+        Random random = new Random(42);
+
+        StringBuilder csv = new StringBuilder();
+        for (int a = 0; a < assignments; a++) {
+            csv.append("assignment,").append(assignmentName(a)).append(",100,").append(1.0 / assignments - 1e-9)
+                    .append('\n');
+        }
+        for (int s = 0; s < students; s++) {
+            csv.append("student,").append(studentName(s)).append(",Student\n");
+            for (int a = 0; a < assignments; a++) {
+                if (random.nextDouble() >= density) {
+                    continue;
+                }
+                csv.append("grade,").append(studentName(s)).append(",Student,").append(assignmentName(a)).append(',')
+                        .append(random.nextInt(101)).append('\n');
+            }
+        }
+        gbook.importCsv(new BufferedReader(new StringReader(csv.toString())));
+        gbook.save_and_encrypt();
+        return key;
+    }
+
+    static String studentName(int i) {
+        StringBuilder name = new StringBuilder("S");
+        do {
+            name.append((char) ('a' + i % 26));
+            i /= 26;
+        } while (i > 0);
+        return name.toString();
+    }
+
+    static String assignmentName(int i) {
+        return "A" + i;
+    }
+
+    interface Op {
+        void run() throws Exception;
+    }
+
+    static long[] time(int iterations, Op op) throws Exception {
+        for (int i = 0; i < WARMUP; i++) {
+            op.run();
+        }
+
+        long[] samples = new long[iterations];
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            op.run();
+            samples[i] = System.nanoTime() - start;
+        }
+        return samples;
+    }
+
+    record Profile(long[] samples, long allocated, long collections) {
+    }
+
+    // Times op like time() and counts the heap it allocates on this thread and the collections that run meanwhile.
+    // The warm-up runs are taken out of the allocation in proportion.
+    static Profile profile(int iterations, Op op) throws Exception {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+                .getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long allocated = threads.getThreadAllocatedBytes(thread);
+        long collections = collections();
+        long[] samples = time(iterations, op);
+        allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+        return new Profile(samples, allocated * samples.length / (samples.length + WARMUP),
+                collections() - collections);
+    }
+
+    private static long collections() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    // The report line of the samples, followed by the bytes allocated per operation and per second of operations.
+    static void report(String name, Profile profile) {
+        long n = profile.samples().length;
+        double seconds = Arrays.stream(profile.samples()).sum() / 1e9;
+        report(name, profile.samples());
+        System.out.printf("%-36s alloc=%10.0f B/op %8.1f MB/s gcs=%d%n", "", (double) profile.allocated() / n,
+                profile.allocated() / seconds / 1e6, profile.collections());
+    }
+
+    static void report(String name, long[] samples) {
+        report(name, samples, 0);
+    }
+
+    // As above, followed by the throughput in MB/s when each operation handles bytes bytes.
+    static void report(String name, long[] samples, long bytes) {
+        long[] sorted = samples.clone();
+        Arrays.sort(sorted);
+        double mean = Arrays.stream(sorted).average().orElse(0);
+        System.out.printf("%-36s n=%-6d %10.0f ops/s mean=%10.1fus p50=%10.1fus p99=%10.1fus max=%10.1fus", name,
+                sorted.length, 1e9 / mean, mean / 1e3, percentile(sorted, 0.50) / 1e3, percentile(sorted, 0.99) / 1e3,
+                sorted[sorted.length - 1] / 1e3);
+        if (bytes > 0) {
+            System.out.printf(" %8.1f MB/s", bytes * 1e3 / mean);
+        }
+        System.out.println();
+    }
+
+    static double percentile(long[] sorted, double p) {
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1)];
+    }
+}
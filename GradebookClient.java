@@ -0,0 +1,40 @@
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+
+// Thin client for GradebookDaemon. Takes the socket path, the tool ("add" or "display") and then exactly the
+// arguments gradebookadd or gradebookdisplay would take, and behaves like that tool.
+public class GradebookClient {
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.out.println("invalid");
+            System.exit(255);
+        }
+
+        int exitCode = 0;
+        try (SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(args[0]));
+                DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(Channels.newOutputStream(channel)));
+                DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)))) {
+            out.writeUTF(args[1]);
+            out.writeUTF(Paths.get("").toAbsolutePath().toString());
+            out.writeInt(args.length - 2);
+            for (int i = 2; i < args.length; i++) {
+                out.writeUTF(args[i]);
+            }
+            out.flush();
+
+            exitCode = in.readInt();
+            byte[] output = new byte[in.readInt()];
+            in.readFully(output);
+            System.out.write(output);
+            System.out.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+            exitCode = 1;
+        }
+
+        System.exit(exitCode);
+    }
+}
@@ -0,0 +1,819 @@
+import java.io.*;
+import java.util.*;
+import java.util.function.*;
+
+// A backend that keeps the book in primitive arrays instead of SQLite tables, so a lookup or an update is a few array
+// accesses rather than a trip through JDBC and the SQL engine. It follows the SQLite backend row for row: the same
+// errors, the same order of results and, since totals are summed the way SQLite's SUM does it, the same bits in
+// every final grade.
+public class GradebookColumns implements GradebookBackend {
+    // The serialized form starts with this, which tells it apart from a SQLite file. Next come the next assignment
+    // and student IDs and the number of each; then each assignment as (ID, name, points, weight, cell width); then
+    // every student's grades as one row of cells, each as many bytes as its assignment's width; and finally each
+    // student as (ID, first name, last name). Numbers are big-endian and names are modified UTF-8.
+    static final byte[] MAGIC = { 'G', 'B', 'C', 'O', 'L', 'S', 0, 1 };
+
+    private static final int PAGE_SIZE = 4096;
+
+    // Assignments and students occupy slots in the order they were added, which is also the order of their IDs, so
+    // walking the slots walks the rows the way SQLite would. A deleted one keeps its slot with ID 0 until compact().
+    private int[] assignmentIDs;
+    private String[] assignmentNames;
+    private int[] points;
+    private double[] weights;
+    private int assignmentSlots;
+    private int liveAssignments;
+    private int nextAssignmentID;
+    private final Map<String, Integer> assignmentSlot;
+
+    private int[] studentIDs;
+    private String[] firstNames;
+    private String[] lastNames;
+    private int studentSlots;
+    private int liveStudents;
+    private int nextStudentID;
+    private final Map<String, Integer> studentSlot;
+
+    // The grade of student s in assignment a is grades[s * stride + a], where stride is the assignment capacity.
+    // totals[s] is the student's final grade, NaN where SQLite would have NULL because no grade counts.
+    private int[] grades;
+    private int stride;
+    private double[] totals;
+
+    // While a transaction or savepoint is open every change logs a step that reverts it. Cells of students and
+    // assignments added since the innermost one began need no steps: undoing the addition discards them.
+    private boolean readOnly;
+    private boolean inTransaction;
+    private final List<Runnable> undo;
+    private final Deque<int[]> savepoints;
+    private int freshStudents;
+    private int freshAssignments;
+
+    private GradebookColumns(int assignments, int students) {
+        this.stride = Math.max(16, Integer.highestOneBit(Math.max(1, assignments)) * 2);
+        int capacity = Math.max(64, Integer.highestOneBit(Math.max(1, students)) * 2);
+        this.assignmentIDs = new int[this.stride];
+        this.assignmentNames = new String[this.stride];
+        this.points = new int[this.stride];
+        this.weights = new double[this.stride];
+        this.assignmentSlots = 0;
+        this.liveAssignments = 0;
+        this.nextAssignmentID = 1;
+        this.assignmentSlot = new HashMap<String, Integer>();
+        this.studentIDs = new int[capacity];
+        this.firstNames = new String[capacity];
+        this.lastNames = new String[capacity];
+        this.studentSlots = 0;
+        this.liveStudents = 0;
+        this.nextStudentID = 1;
+        this.studentSlot = new HashMap<String, Integer>();
+        this.grades = new int[capacity * this.stride];
+        this.totals = new double[capacity];
+        this.readOnly = false;
+        this.inTransaction = false;
+        this.undo = new ArrayList<Runnable>();
+        this.savepoints = new ArrayDeque<int[]>();
+        this.freshStudents = 0;
+        this.freshAssignments = 0;
+    }
+
+    public static GradebookColumns create() {
+        return new GradebookColumns(0, 0);
+    }
+
+    static boolean matches(byte[] data) {
+        return data.length >= MAGIC.length && Arrays.equals(data, 0, MAGIC.length, MAGIC, 0, MAGIC.length);
+    }
+
+    public static GradebookColumns load(byte[] data) throws Gradebook.AppError {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+            in.skipNBytes(MAGIC.length);
+            int nextAssignmentID = in.readInt();
+            int nextStudentID = in.readInt();
+            int assignments = in.readInt();
+            int students = in.readInt();
+            if (assignments < 0 || students < 0 || assignments > data.length || students > data.length) {
+                throw new Gradebook.AppError();
+            }
+
+            GradebookColumns columns = new GradebookColumns(assignments, students);
+            int[] widths = new int[assignments];
+            for (int a = 0; a < assignments; a++) {
+                columns.assignmentIDs[a] = in.readInt();
+                columns.assignmentNames[a] = in.readUTF();
+                columns.points[a] = in.readInt();
+                columns.weights[a] = in.readDouble();
+                widths[a] = in.readByte();
+                columns.assignmentSlot.put(columns.assignmentNames[a], a);
+            }
+            columns.assignmentSlots = assignments;
+            columns.liveAssignments = assignments;
+            columns.nextAssignmentID = nextAssignmentID;
+
+            for (int s = 0; s < students; s++) {
+                int row = s * columns.stride;
+                for (int a = 0; a < assignments; a++) {
+                    columns.grades[row + a] = switch (widths[a]) {
+                        case 1 -> in.readUnsignedByte();
+                        case 2 -> in.readUnsignedShort();
+                        case 4 -> in.readInt();
+                        default -> throw new Gradebook.AppError();
+                    };
+                }
+            }
+
+            for (int s = 0; s < students; s++) {
+                columns.studentIDs[s] = in.readInt();
+                columns.firstNames[s] = in.readUTF();
+                columns.lastNames[s] = in.readUTF();
+                columns.studentSlot.put(columns.firstNames[s] + " " + columns.lastNames[s], s);
+                columns.totals[s] = columns.total(s);
+            }
+            columns.studentSlots = students;
+            columns.liveStudents = students;
+            columns.nextStudentID = nextStudentID;
+            return columns;
+        } catch (IOException ignored) {
+            throw new Gradebook.AppError();
+        }
+    }
+
+    public byte[] serialize() throws Gradebook.BackendError {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+                    MAGIC.length + 16 + this.liveStudents * (this.liveAssignments + 16));
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.write(MAGIC);
+            out.writeInt(this.nextAssignmentID);
+            out.writeInt(this.nextStudentID);
+            out.writeInt(this.liveAssignments);
+            out.writeInt(this.liveStudents);
+
+            // Each column is stored in the fewest bytes that hold all of its grades, usually one.
+            int[] assignments = liveAssignments();
+            int[] students = liveStudents();
+            int[] widths = new int[assignments.length];
+            int rowSize = 0;
+            for (int i = 0; i < assignments.length; i++) {
+                int a = assignments[i];
+                int max = 0;
+                for (int s : students) {
+                    int grade = this.grades[s * this.stride + a];
+                    max = grade < 0 ? Integer.MAX_VALUE : Math.max(max, grade);
+                }
+                widths[i] = max <= 0xff ? 1 : max <= 0xffff ? 2 : 4;
+                rowSize += widths[i];
+
+                out.writeInt(this.assignmentIDs[a]);
+                out.writeUTF(this.assignmentNames[a]);
+                out.writeInt(this.points[a]);
+                out.writeDouble(this.weights[a]);
+                out.writeByte(widths[i]);
+            }
+
+            byte[] row = new byte[rowSize];
+            for (int s : students) {
+                int position = 0;
+                for (int i = 0; i < assignments.length; i++) {
+                    int grade = this.grades[s * this.stride + assignments[i]];
+                    for (int shift = (widths[i] - 1) * 8; shift >= 0; shift -= 8) {
+                        row[position++] = (byte) (grade >>> shift);
+                    }
+                }
+                out.write(row);
+            }
+
+            for (int s : students) {
+                out.writeInt(this.studentIDs[s]);
+                out.writeUTF(this.firstNames[s]);
+                out.writeUTF(this.lastNames[s]);
+            }
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new Gradebook.BackendError(e);
+        }
+    }
+
+    public int pageSize() {
+        return PAGE_SIZE;
+    }
+
+    public void close() {
+    }
+
+    public boolean migrate() {
+        return false;
+    }
+
+    public void readOnly() {
+        this.readOnly = true;
+    }
+
+    // Deleted rows are already left out of the serialized form.
+    public void trim() {
+    }
+
+    private void writable() throws Gradebook.BackendError {
+        if (this.readOnly) {
+            throw new Gradebook.BackendError();
+        }
+    }
+
+    public void begin() {
+        this.inTransaction = true;
+        this.freshStudents = this.studentSlots;
+        this.freshAssignments = this.assignmentSlots;
+    }
+
+    public void commit() {
+        this.inTransaction = false;
+        if (this.savepoints.isEmpty()) {
+            this.undo.clear();
+        }
+    }
+
+    public void rollback() {
+        revert(0);
+        this.inTransaction = false;
+        this.savepoints.clear();
+    }
+
+    public void savepoint() {
+        this.savepoints.push(new int[] { this.undo.size(), this.freshStudents, this.freshAssignments });
+        this.freshStudents = this.studentSlots;
+        this.freshAssignments = this.assignmentSlots;
+    }
+
+    public void releaseSavepoint() {
+        int[] savepoint = this.savepoints.pop();
+        this.freshStudents = savepoint[1];
+        this.freshAssignments = savepoint[2];
+        if (!logging()) {
+            this.undo.clear();
+        }
+    }
+
+    public void rollbackToSavepoint() {
+        int[] savepoint = this.savepoints.pop();
+        revert(savepoint[0]);
+        this.freshStudents = savepoint[1];
+        this.freshAssignments = savepoint[2];
+    }
+
+    private boolean logging() {
+        return this.inTransaction || !this.savepoints.isEmpty();
+    }
+
+    private void log(Runnable step) {
+        if (logging()) {
+            this.undo.add(step);
+        }
+    }
+
+    private void revert(int size) {
+        while (this.undo.size() > size) {
+            this.undo.remove(this.undo.size() - 1).run();
+        }
+    }
+
+    public void addAssignment(String name, int points, double weight)
+            throws Gradebook.AppError, Gradebook.BackendError {
+        writable();
+        if (this.assignmentSlot.containsKey(name) || !fits(weight)) {
+            throw new Gradebook.AppError();
+        }
+        insertAssignment(name, points, weight);
+
+        // The new assignment sorts last and adds an exact 0.0 to every total, so only students without any counted
+        // grade yet can change.
+        for (int s = 0; s < this.studentSlots; s++) {
+            if (this.studentIDs[s] != 0 && Double.isNaN(this.totals[s])) {
+                setTotal(s, total(s));
+            }
+        }
+    }
+
+    public void deleteAssignment(String name) throws Gradebook.AppError, Gradebook.BackendError {
+        writable();
+        removeAssignment(assignmentSlot(name));
+        updateTotals();
+    }
+
+    public void addStudent(String firstName, String lastName) throws Gradebook.AppError, Gradebook.BackendError {
+        writable();
+        if (this.studentSlot.containsKey(firstName + " " + lastName)) {
+            throw new Gradebook.AppError();
+        }
+        int s = insertStudent(firstName, lastName);
+        setTotal(s, total(s));
+    }
+
+    public void deleteStudent(String firstName, String lastName) throws Gradebook.AppError, Gradebook.BackendError {
+        writable();
+        removeStudent(studentSlot(firstName, lastName));
+    }
+
+    public void addGrade(String studentFirstName, String studentLastName, String assignmentName, int grade)
+            throws Gradebook.AppError, Gradebook.BackendError {
+        writable();
+        int s = studentSlot(studentFirstName, studentLastName);
+        int a = assignmentSlot(assignmentName);
+        if (grade > this.points[a]) {
+            throw new Gradebook.AppError();
+        }
+        setGrade(s, a, grade);
+        setTotal(s, total(s));
+    }
+
+    // The weight trigger: SUM(weight) of the existing assignments plus the new weight may not exceed 1.0, where the
+    // sum of no assignments is NULL and lets anything through.
+    private boolean fits(double weight) {
+        if (this.liveAssignments == 0) {
+            return true;
+        }
+        Sum sum = new Sum();
+        for (int a = 0; a < this.assignmentSlots; a++) {
+            if (this.assignmentIDs[a] != 0) {
+                sum.add(this.weights[a]);
+            }
+        }
+        return !(sum.value() + weight > 1.0);
+    }
+
+    // SUM((CAST(grade AS REAL) / points) * weight) over the student's grades in assignment order. Assignments out
+    // of 0 points divide by zero, which SQL turns into NULL and SUM skips.
+    private double total(int s) {
+        Sum sum = new Sum();
+        int row = s * this.stride;
+        for (int a = 0; a < this.assignmentSlots; a++) {
+            if (this.assignmentIDs[a] != 0 && this.points[a] != 0) {
+                sum.add(((double) this.grades[row + a] / this.points[a]) * this.weights[a]);
+            }
+        }
+        return sum.value();
+    }
+
+    private void updateTotals() {
+        double[] saved = Arrays.copyOf(this.totals, this.studentSlots);
+        log(() -> System.arraycopy(saved, 0, this.totals, 0, saved.length));
+        for (int s = 0; s < this.studentSlots; s++) {
+            if (this.studentIDs[s] != 0) {
+                this.totals[s] = total(s);
+            }
+        }
+    }
+
+    private int assignmentSlot(String name) throws Gradebook.AppError {
+        Integer a = this.assignmentSlot.get(name);
+        if (a == null) {
+            throw new Gradebook.AppError();
+        }
+        return a;
+    }
+
+    private int studentSlot(String firstName, String lastName) throws Gradebook.AppError {
+        Integer s = this.studentSlot.get(firstName + " " + lastName);
+        if (s == null) {
+            throw new Gradebook.AppError();
+        }
+        return s;
+    }
+
+    // The only changes made to the arrays; each logs its own undo step.
+
+    private int insertAssignment(String name, int points, double weight) {
+        compact();
+        if (this.assignmentSlots == this.stride) {
+            widen();
+        }
+        int a = this.assignmentSlots++;
+        int nextID = this.nextAssignmentID;
+        this.assignmentIDs[a] = this.nextAssignmentID++;
+        this.assignmentNames[a] = name;
+        this.points[a] = points;
+        this.weights[a] = weight;
+        this.assignmentSlot.put(name, a);
+        this.liveAssignments++;
+        for (int s = 0; s < this.studentSlots; s++) {
+            this.grades[s * this.stride + a] = 0;
+        }
+
+        log(() -> {
+            this.assignmentSlots--;
+            this.assignmentIDs[a] = 0;
+            this.assignmentSlot.remove(name);
+            this.liveAssignments--;
+            this.nextAssignmentID = nextID;
+        });
+        return a;
+    }
+
+    private void removeAssignment(int a) {
+        int id = this.assignmentIDs[a];
+        String name = this.assignmentNames[a];
+        this.assignmentIDs[a] = 0;
+        this.assignmentSlot.remove(name);
+        this.liveAssignments--;
+
+        log(() -> {
+            this.assignmentIDs[a] = id;
+            this.assignmentSlot.put(name, a);
+            this.liveAssignments++;
+        });
+    }
+
+    private int insertStudent(String firstName, String lastName) {
+        compact();
+        if (this.studentSlots == this.studentIDs.length) {
+            grow();
+        }
+        int s = this.studentSlots++;
+        int nextID = this.nextStudentID;
+        String key = firstName + " " + lastName;
+        this.studentIDs[s] = this.nextStudentID++;
+        this.firstNames[s] = firstName;
+        this.lastNames[s] = lastName;
+        this.totals[s] = Double.NaN;
+        this.studentSlot.put(key, s);
+        this.liveStudents++;
+        Arrays.fill(this.grades, s * this.stride, (s + 1) * this.stride, 0);
+
+        log(() -> {
+            this.studentSlots--;
+            this.studentIDs[s] = 0;
+            this.studentSlot.remove(key);
+            this.liveStudents--;
+            this.nextStudentID = nextID;
+        });
+        return s;
+    }
+
+    private void removeStudent(int s) {
+        int id = this.studentIDs[s];
+        String key = this.firstNames[s] + " " + this.lastNames[s];
+        this.studentIDs[s] = 0;
+        this.studentSlot.remove(key);
+        this.liveStudents--;
+
+        log(() -> {
+            this.studentIDs[s] = id;
+            this.studentSlot.put(key, s);
+            this.liveStudents++;
+        });
+    }
+
+    private void setGrade(int s, int a, int grade) {
+        int old = this.grades[s * this.stride + a];
+        this.grades[s * this.stride + a] = grade;
+        if (s < this.freshStudents && a < this.freshAssignments) {
+            log(() -> this.grades[s * this.stride + a] = old);
+        }
+    }
+
+    private void setTotal(int s, double total) {
+        double old = this.totals[s];
+        this.totals[s] = total;
+        if (s < this.freshStudents) {
+            log(() -> this.totals[s] = old);
+        }
+    }
+
+    private void grow() {
+        int capacity = this.studentIDs.length * 2;
+        this.studentIDs = Arrays.copyOf(this.studentIDs, capacity);
+        this.firstNames = Arrays.copyOf(this.firstNames, capacity);
+        this.lastNames = Arrays.copyOf(this.lastNames, capacity);
+        this.totals = Arrays.copyOf(this.totals, capacity);
+        this.grades = Arrays.copyOf(this.grades, capacity * this.stride);
+    }
+
+    private void widen() {
+        int stride = this.stride * 2;
+        int[] grades = new int[this.studentIDs.length * stride];
+        for (int s = 0; s < this.studentSlots; s++) {
+            System.arraycopy(this.grades, s * this.stride, grades, s * stride, this.assignmentSlots);
+        }
+        this.grades = grades;
+        this.stride = stride;
+        this.assignmentIDs = Arrays.copyOf(this.assignmentIDs, stride);
+        this.assignmentNames = Arrays.copyOf(this.assignmentNames, stride);
+        this.points = Arrays.copyOf(this.points, stride);
+        this.weights = Arrays.copyOf(this.weights, stride);
+    }
+
+    // Drops the slots of deleted students and assignments once they outnumber the live ones. Slots move, so this
+    // only runs while no undo step can refer to one.
+    private void compact() {
+        boolean students = this.studentSlots - this.liveStudents > Math.max(64, this.liveStudents);
+        boolean assignments = this.assignmentSlots - this.liveAssignments > Math.max(16, this.liveAssignments);
+        if (logging() || !(students || assignments)) {
+            return;
+        }
+
+        int[] keep = liveAssignments();
+        for (int i = 0; i < keep.length; i++) {
+            this.assignmentIDs[i] = this.assignmentIDs[keep[i]];
+            this.assignmentNames[i] = this.assignmentNames[keep[i]];
+            this.points[i] = this.points[keep[i]];
+            this.weights[i] = this.weights[keep[i]];
+            this.assignmentSlot.put(this.assignmentNames[i], i);
+        }
+
+        // Every cell moves to an index no greater than its own, so the matrix can be compacted in place.
+        int[] rows = liveStudents();
+        for (int i = 0; i < rows.length; i++) {
+            int s = rows[i];
+            for (int j = 0; j < keep.length; j++) {
+                this.grades[i * this.stride + j] = this.grades[s * this.stride + keep[j]];
+            }
+            this.studentIDs[i] = this.studentIDs[s];
+            this.firstNames[i] = this.firstNames[s];
+            this.lastNames[i] = this.lastNames[s];
+            this.totals[i] = this.totals[s];
+            this.studentSlot.put(this.firstNames[i] + " " + this.lastNames[i], i);
+        }
+
+        Arrays.fill(this.assignmentIDs, keep.length, this.assignmentSlots, 0);
+        Arrays.fill(this.studentIDs, rows.length, this.studentSlots, 0);
+        this.assignmentSlots = keep.length;
+        this.studentSlots = rows.length;
+    }
+
+    private int[] liveAssignments() {
+        int[] slots = new int[this.liveAssignments];
+        int count = 0;
+        for (int a = 0; a < this.assignmentSlots; a++) {
+            if (this.assignmentIDs[a] != 0) {
+                slots[count++] = a;
+            }
+        }
+        return slots;
+    }
+
+    private int[] liveStudents() {
+        int[] slots = new int[this.liveStudents];
+        int count = 0;
+        for (int s = 0; s < this.studentSlots; s++) {
+            if (this.studentIDs[s] != 0) {
+                slots[count++] = s;
+            }
+        }
+        return slots;
+    }
+
+    private int compareNames(int s, int t) {
+        int order = this.lastNames[s].compareTo(this.lastNames[t]);
+        return order != 0 ? order : this.firstNames[s].compareTo(this.firstNames[t]);
+    }
+
+    private int compareNames(int s, String lastName, String firstName) {
+        int order = this.lastNames[s].compareTo(lastName);
+        return order != 0 ? order : this.firstNames[s].compareTo(firstName);
+    }
+
+    // NULL sorts below every total, as in SQL.
+    private double sortTotal(int s) {
+        return Double.isNaN(this.totals[s]) ? Double.NEGATIVE_INFINITY : this.totals[s];
+    }
+
+    private double shownTotal(int s) {
+        return Double.isNaN(this.totals[s]) ? 0.0 : this.totals[s];
+    }
+
+    // Results are computed up front as an array of slots and mapped to rows as the cursor is read.
+    private static <T> GradebookCursor<T> cursor(int[] slots, int count, IntFunction<T> row) {
+        return new GradebookCursor<T>(new Iterator<T>() {
+            private int next = 0;
+
+            public boolean hasNext() {
+                return this.next < count;
+            }
+
+            public T next() {
+                if (this.next == count) {
+                    throw new NoSuchElementException();
+                }
+                return row.apply(slots[this.next++]);
+            }
+        });
+    }
+
+    // Sorts slots stably, as SQLite's sorter leaves rows with equal keys in the order it scanned them.
+    private static int[] sorted(int[] slots, Comparator<Integer> order) {
+        Integer[] boxed = new Integer[slots.length];
+        for (int i = 0; i < slots.length; i++) {
+            boxed[i] = slots[i];
+        }
+        Arrays.sort(boxed, order);
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = boxed[i];
+        }
+        return slots;
+    }
+
+    public GradebookCursor<Gradebook.AssignmentGrade> assignmentGrades(String name,
+            boolean alphabetical_or_grade_order) throws Gradebook.AppError {
+        int a = assignmentSlot(name);
+        int[] slots = liveStudents();
+        if (alphabetical_or_grade_order) {
+            sorted(slots, this::compareNames);
+        } else {
+            // Grades are never negative, so one long per row sorts by grade, highest first, then by position.
+            long[] keys = new long[slots.length];
+            for (int i = 0; i < slots.length; i++) {
+                keys[i] = ((long) (Integer.MAX_VALUE - this.grades[slots[i] * this.stride + a]) << 32) | i;
+            }
+            Arrays.sort(keys);
+            int[] order = slots.clone();
+            for (int i = 0; i < slots.length; i++) {
+                slots[i] = order[(int) keys[i]];
+            }
+        }
+        return cursor(slots, slots.length, s -> new Gradebook.AssignmentGrade(this.lastNames[s], this.firstNames[s],
+                this.grades[s * this.stride + a]));
+    }
+
+    public GradebookCursor<Gradebook.AssignmentGrade> assignmentGrades(String name,
+            boolean alphabetical_or_grade_order, Gradebook.AssignmentGrade after, int limit)
+            throws Gradebook.AppError {
+        int a = assignmentSlot(name);
+        int[] slots = liveStudents();
+        int count = 0;
+        for (int s : slots) {
+            int grade = this.grades[s * this.stride + a];
+            if (after == null || (alphabetical_or_grade_order
+                    ? compareNames(s, after.lastName(), after.firstName()) > 0
+                    : grade < after.grade()
+                            || (grade == after.grade() && compareNames(s, after.lastName(), after.firstName()) > 0))) {
+                slots[count++] = s;
+            }
+        }
+
+        Comparator<Integer> order = this::compareNames;
+        if (!alphabetical_or_grade_order) {
+            order = Comparator.<Integer>comparingInt(s -> -this.grades[s * this.stride + a]).thenComparing(order);
+        }
+        slots = sorted(Arrays.copyOf(slots, count), order);
+        return cursor(slots, limit < 0 ? count : Math.min(count, limit), s -> new Gradebook.AssignmentGrade(
+                this.lastNames[s], this.firstNames[s], this.grades[s * this.stride + a]));
+    }
+
+    public GradebookCursor<Gradebook.StudentGrade> studentGrades(String firstName, String lastName)
+            throws Gradebook.AppError {
+        int s = studentSlot(firstName, lastName);
+        int[] slots = liveAssignments();
+        return cursor(slots, slots.length, a -> new Gradebook.StudentGrade(this.assignmentNames[a],
+                this.grades[s * this.stride + a]));
+    }
+
+    public GradebookCursor<Gradebook.FinalGrade> finalGrades(boolean alphabetical_or_grade_order) {
+        int[] slots = liveStudents();
+        if (alphabetical_or_grade_order) {
+            sorted(slots, this::compareNames);
+        } else {
+            sorted(slots, (s, t) -> Double.compare(sortTotal(t), sortTotal(s)));
+        }
+        return cursor(slots, slots.length,
+                s -> new Gradebook.FinalGrade(this.lastNames[s], this.firstNames[s], shownTotal(s)));
+    }
+
+    public GradebookCursor<Gradebook.FinalGrade> finalGrades(boolean alphabetical_or_grade_order,
+            Gradebook.FinalGrade after, int limit) {
+        int[] slots = liveStudents();
+        int count = 0;
+        for (int s : slots) {
+            double total = shownTotal(s);
+            if (after == null || (alphabetical_or_grade_order
+                    ? compareNames(s, after.lastName(), after.firstName()) > 0
+                    : total < after.totalGrade() || (total == after.totalGrade()
+                            && compareNames(s, after.lastName(), after.firstName()) > 0))) {
+                slots[count++] = s;
+            }
+        }
+
+        Comparator<Integer> order = this::compareNames;
+        if (!alphabetical_or_grade_order) {
+            order = Comparator.<Integer>comparingDouble(s -> -shownTotal(s)).thenComparing(order);
+        }
+        slots = sorted(Arrays.copyOf(slots, count), order);
+        return cursor(slots, limit < 0 ? count : Math.min(count, limit),
+                s -> new Gradebook.FinalGrade(this.lastNames[s], this.firstNames[s], shownTotal(s)));
+    }
+
+    public List<GradebookStatistics.Summary> statistics(boolean parallel) {
+        int[] assignments = liveAssignments();
+        int[] students = liveStudents();
+        String[] names = new String[assignments.length];
+        int[] points = new int[assignments.length];
+        int[] offsets = new int[assignments.length + 1];
+        int[] grades = new int[assignments.length * students.length];
+        for (int i = 0; i < assignments.length; i++) {
+            names[i] = this.assignmentNames[assignments[i]];
+            points[i] = this.points[assignments[i]];
+            offsets[i + 1] = offsets[i] + students.length;
+            for (int j = 0; j < students.length; j++) {
+                grades[offsets[i] + j] = this.grades[students[j] * this.stride + assignments[i]];
+            }
+        }
+
+        double[] finals = new double[students.length];
+        for (int j = 0; j < students.length; j++) {
+            finals[j] = shownTotal(students[j]);
+        }
+        return GradebookStatistics.compute(names, points, offsets, grades, finals, parallel);
+    }
+
+    public int checkFinalGrades(PrintStream out) {
+        int mismatches = 0;
+        for (int s : sorted(liveStudents(), this::compareNames)) {
+            double computed = total(s);
+            if (Double.compare(this.totals[s], computed) != 0) {
+                out.println("(" + this.lastNames[s] + ", " + this.firstNames[s] + ", " + shown(this.totals[s]) + ", "
+                        + shown(computed) + ")");
+                mismatches++;
+            }
+        }
+        return mismatches;
+    }
+
+    private static String shown(double total) {
+        return Double.isNaN(total) ? "null" : Double.toString(total);
+    }
+
+    public void importCsv(BufferedReader in) throws Gradebook.AppError, Gradebook.BackendError {
+        writable();
+        boolean committed = false;
+        begin();
+        try {
+            long number = 0;
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] fields = Gradebook.csvRow(line, ++number);
+                if (fields == null) {
+                    continue;
+                }
+
+                if (fields[0].equals("assignment")) {
+                    int points = Integer.parseInt(fields[2]);
+                    double weight = Double.parseDouble(fields[3]);
+                    if (this.assignmentSlot.containsKey(fields[1]) || !fits(weight)) {
+                        throw new Gradebook.LineError(number);
+                    }
+
+                    insertAssignment(fields[1], points, weight);
+                } else if (fields[0].equals("student")) {
+                    if (this.studentSlot.containsKey(fields[1] + " " + fields[2])) {
+                        throw new Gradebook.LineError(number);
+                    }
+
+                    insertStudent(fields[1], fields[2]);
+                } else {
+                    Integer s = this.studentSlot.get(fields[1] + " " + fields[2]);
+                    Integer a = this.assignmentSlot.get(fields[3]);
+                    int grade = Integer.parseInt(fields[4]);
+                    if (s == null || a == null || grade > this.points[a]) {
+                        throw new Gradebook.LineError(number);
+                    }
+
+                    setGrade(s, a, grade);
+                }
+            }
+            updateTotals();
+
+            commit();
+            committed = true;
+        } catch (IOException e) {
+            throw new Gradebook.BackendError(e);
+        } finally {
+            if (!committed) {
+                rollback();
+            }
+        }
+    }
+
+    public void exportCsv(Writer out) throws Gradebook.BackendError {
+        try {
+            int[] assignments = liveAssignments();
+            for (int a : assignments) {
+                out.write("assignment," + this.assignmentNames[a] + "," + this.points[a] + "," + this.weights[a]
+                        + "\n");
+            }
+
+            int[] students = liveStudents();
+            for (int s : students) {
+                out.write("student," + this.firstNames[s] + "," + this.lastNames[s] + "\n");
+            }
+
+            for (int s : students) {
+                for (int a : assignments) {
+                    out.write("grade," + this.firstNames[s] + "," + this.lastNames[s] + "," + this.assignmentNames[a]
+                            + "," + this.grades[s * this.stride + a] + "\n");
+                }
+            }
+            out.flush();
+        } catch (IOException e) {
+            throw new Gradebook.BackendError(e);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+import java.sql.*;
+import java.util.*;
+import java.util.stream.*;
+
+// Lazily maps the rows of a query to values, one database step per row, so a result of any size is read in
+// constant memory. The statement is checked out of the gradebook's cache while the cursor is open, so other queries
+// can run in the meantime. Close the cursor (or the stream it returns) when done; reading to the end also closes it.
+// Backends that already hold their rows in memory hand over a plain iterator instead.
+public class GradebookCursor<T> implements Iterator<T>, AutoCloseable {
+    interface Mapper<T> {
+        T map(ResultSet row) throws SQLException;
+    }
+
+    interface Release {
+        void release(PreparedStatement statement) throws SQLException;
+    }
+
+    // hasNext and next cannot throw checked exceptions, so failures while reading surface as this, caused by the
+    // BackendError.
+    public static class Failure extends RuntimeException {
+        Failure(Gradebook.BackendError cause) {
+            super(cause);
+        }
+
+        public Gradebook.BackendError getCause() {
+            return (Gradebook.BackendError) super.getCause();
+        }
+    }
+
+    private final PreparedStatement statement;
+    private final ResultSet row;
+    private final Mapper<T> mapper;
+    private final Release release;
+    private final Iterator<T> rows;
+    private boolean fetched;
+    private boolean closed;
+
+    GradebookCursor(PreparedStatement statement, Mapper<T> mapper, Release release) throws SQLException {
+        this.statement = statement;
+        this.row = statement.executeQuery();
+        this.mapper = mapper;
+        this.release = release;
+        this.rows = null;
+        this.fetched = false;
+        this.closed = false;
+    }
+
+    GradebookCursor(Iterator<T> rows) {
+        this.statement = null;
+        this.row = null;
+        this.mapper = null;
+        this.release = null;
+        this.rows = rows;
+        this.fetched = false;
+        this.closed = false;
+    }
+
+    public boolean hasNext() {
+        if (this.closed) {
+            return false;
+        }
+        if (this.rows != null) {
+            if (!this.rows.hasNext()) {
+                this.closed = true;
+                return false;
+            }
+            return true;
+        }
+        if (!this.fetched) {
+            try {
+                this.fetched = true;
+                if (!this.row.next()) {
+                    close();
+                    return false;
+                }
+            } catch (SQLException e) {
+                throw new Failure(new Gradebook.BackendError(e));
+            } catch (Gradebook.BackendError backendError) {
+                throw new Failure(backendError);
+            }
+        }
+        return true;
+    }
+
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        if (this.rows != null) {
+            return this.rows.next();
+        }
+        try {
+            this.fetched = false;
+            return this.mapper.map(this.row);
+        } catch (SQLException e) {
+            throw new Failure(new Gradebook.BackendError(e));
+        }
+    }
+
+    public Stream<T> stream() {
+        Spliterator<T> rows = Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL);
+        return StreamSupport.stream(rows, false).onClose(() -> {
+            try {
+                close();
+            } catch (Gradebook.BackendError backendError) {
+                throw new Failure(backendError);
+            }
+        });
+    }
+
+    public void close() throws Gradebook.BackendError {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        if (this.rows != null) {
+            return;
+        }
+        try {
+            this.row.close();
+            this.release.release(this.statement);
+        } catch (SQLException e) {
+            throw new Gradebook.BackendError(e);
+        }
+    }
+}
@@ -0,0 +1,299 @@
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.*;
+import jdk.net.ExtendedSocketOptions;
+import jdk.net.UnixDomainPrincipal;
+
+// Keeps decrypted gradebooks open between commands and serves gradebookadd/gradebookdisplay invocations over a
+// Unix domain socket. Changes are flushed to disk on a schedule, when a book is evicted for being idle and on
+// shutdown, so the files on disk may lag behind the daemon by up to one flush interval. An open book holds its
+// file's writer lock until it has been idle for -I seconds, plus up to one flush interval for the next eviction
+// pass. The defaults release it within a writer's lock timeout (GradebookFile.lockTimeout()), so a gradebookadd
+// run directly against a book the daemon has stopped using waits for it rather than failing; a book still in use
+// through the daemon is not released, so writes to it should go through the daemon too. Changes to a book are
+// applied one at a time; displays run in parallel with them and with each other, each on a snapshot taken between
+// two changes (see GradebookReaders).
+//
+// The socket is only open to the user running the daemon, and connections from any other user are refused, so
+// the files a client names, gradebooks, batch, import and export files alike, are ones it could open itself.
+//
+// Protocol, per request: the client writes the tool name ("add" or "display"), its working directory, the
+// argument count and each argument with DataOutputStream.writeUTF/writeInt. The daemon replies with the exit code
+// and the length-prefixed bytes the tool would have printed to stdout.
+public class GradebookDaemon {
+    @Parameter(names = "-S", description = "Socket path", required = true)
+    private String socket;
+
+    @Parameter(names = "-I", description = "Seconds a gradebook may stay idle before it is evicted")
+    private int idleSeconds = 20;
+
+    @Parameter(names = "-F", description = "Seconds between flushes of modified gradebooks")
+    private int flushSeconds = 5;
+
+    @Parameter(names = "-T", description = "Worker threads")
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    private static class Entry {
+        private final String key;
+        private final GradebookReaders readers;
+        private long lastUsed;
+
+        private Entry(String key, GradebookReaders readers) {
+            this.key = key;
+            this.readers = readers;
+            this.lastUsed = System.nanoTime();
+        }
+    }
+
+    private final Map<String, Entry> books = new HashMap<String, Entry>();
+    // One lock per book ever loaded, so that loads of the same book take turns while other books load alongside.
+    // They are never removed: a lock dropped while a load waited on it would let a second load of that book start.
+    private final ConcurrentMap<String, Object> loading = new ConcurrentHashMap<String, Object>();
+
+    public static void main(String[] args) {
+        GradebookDaemon daemon = new GradebookDaemon();
+        try {
+            JCommander.newBuilder().addObject(daemon).build().parse(args);
+        } catch (ParameterException ignored) {
+            System.out.println("invalid");
+            System.exit(255);
+        }
+
+        if (TimeUnit.SECONDS.toMillis(daemon.idleSeconds + daemon.flushSeconds) >= GradebookFile.lockTimeout()) {
+            System.err.println("Idle books are released after up to " + (daemon.idleSeconds + daemon.flushSeconds)
+                    + " s, longer than the " + GradebookFile.lockTimeout() + " ms writers wait for a lock");
+        }
+
+        try {
+            daemon.serve();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    private void serve() throws IOException {
+        Path path = Paths.get(this.socket).toAbsolutePath();
+        Files.deleteIfExists(path);
+        ServerSocketChannel server = bind(path);
+        UserPrincipal owner = Files.getOwner(path);
+
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        scheduler.scheduleWithFixedDelay(this::maintain, this.flushSeconds, this.flushSeconds, TimeUnit.SECONDS);
+        ExecutorService workers = Executors.newFixedThreadPool(this.threads);
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            scheduler.shutdownNow();
+            workers.shutdown();
+            try {
+                workers.awaitTermination(10, TimeUnit.SECONDS);
+                server.close();
+                Files.deleteIfExists(path);
+            } catch (InterruptedException | IOException ignored) {
+            }
+            closeAll();
+        }));
+
+        while (true) {
+            SocketChannel client;
+            try {
+                client = server.accept();
+            } catch (ClosedChannelException ignored) {
+                return;
+            }
+            workers.execute(() -> handle(client, owner));
+        }
+    }
+
+    // Binds a socket at path that only this user can connect to. It is bound inside a new directory only this user
+    // can enter and made owner-only there before it is moved into place, so nobody else can connect in between.
+    private static ServerSocketChannel bind(Path path) throws IOException {
+        Path directory = Files.createTempDirectory(path.getParent(), ".gradebookd",
+                PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+        ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        try {
+            Path bound = directory.resolve("socket");
+            server.bind(UnixDomainSocketAddress.of(bound));
+            Files.setPosixFilePermissions(bound, PosixFilePermissions.fromString("rw-------"));
+            Files.move(bound, path, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            server.close();
+            throw e;
+        } finally {
+            Files.deleteIfExists(directory.resolve("socket"));
+            Files.deleteIfExists(directory);
+        }
+        return server;
+    }
+
+    private void handle(SocketChannel client, UserPrincipal owner) {
+        try (client;
+                DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(client)));
+                DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(Channels.newOutputStream(client)))) {
+            UnixDomainPrincipal peer = client.getOption(ExtendedSocketOptions.SO_PEERCRED);
+            if (!peer.user().equals(owner)) {
+                System.err.println("Refused a connection from " + peer.user().getName());
+                return;
+            }
+            while (true) {
+                String tool;
+                try {
+                    tool = in.readUTF();
+                } catch (EOFException ignored) {
+                    return;
+                }
+                String cwd = in.readUTF();
+                String[] args = new String[in.readInt()];
+                for (int i = 0; i < args.length; i++) {
+                    args[i] = in.readUTF();
+                }
+
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                PrintStream stdout = new PrintStream(buffer, false, StandardCharsets.UTF_8);
+                int exitCode = run(tool, Paths.get(cwd), args, stdout);
+                stdout.flush();
+
+                out.writeInt(exitCode);
+                out.writeInt(buffer.size());
+                buffer.writeTo(out);
+                out.flush();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Mirrors the exit codes and output of GradebookAdd.main and GradebookDisplay.main.
+    private int run(String tool, Path cwd, String[] args, PrintStream stdout) {
+        GradebookMetrics.begin(tool);
+        try {
+            if (tool.equals("add")) {
+                GradebookAdd app = GradebookAdd.parse(args);
+                app.resolve(cwd);
+                with(cwd.resolve(app.gradebook), app.key, true, gbook -> app.apply(gbook, stdout));
+            } else if (tool.equals("display")) {
+                GradebookDisplay app = GradebookDisplay.parse(args);
+                app.resolve(cwd);
+                with(cwd.resolve(app.gradebook), app.key, false, gbook -> app.apply(gbook, stdout));
+            } else {
+                throw new ParameterException("Unknown tool");
+            }
+        } catch (ParameterException | Gradebook.AppError appError) {
+            stdout.println("invalid");
+            GradebookMetrics.end(appError);
+            return 255;
+        } catch (Gradebook.BackendError backendError) {
+            backendError.printStackTrace();
+            GradebookMetrics.end(backendError);
+            return 0;
+        }
+        GradebookMetrics.end(null);
+        return 0;
+    }
+
+    // Runs command against the open gradebook for path, loading it first if needed: as a change when write is set,
+    // otherwise as a query on a snapshot. The key must match the one the book was opened with.
+    private void with(Path path, String key, boolean write, Gradebook.Mutation command)
+            throws Gradebook.AppError, Gradebook.BackendError {
+        String name = path.toAbsolutePath().normalize().toString();
+        while (true) {
+            Entry entry;
+            synchronized (this.books) {
+                entry = this.books.get(name);
+            }
+            if (entry == null) {
+                // An open book holds its file's writer lock, so a second copy loading in parallel would only wait
+                // for it. Loads of a book take turns instead and check again for a copy loaded in the meantime.
+                synchronized (this.loading.computeIfAbsent(name, n -> new Object())) {
+                    synchronized (this.books) {
+                        entry = this.books.get(name);
+                    }
+                    if (entry == null) {
+                        entry = new Entry(key,
+                                new GradebookReaders(Gradebook.load_and_decrypt(name, key), this.threads));
+                        synchronized (this.books) {
+                            this.books.put(name, entry);
+                        }
+                    }
+                }
+            }
+
+            if (!MessageDigest.isEqual(entry.key.toLowerCase().getBytes(StandardCharsets.US_ASCII),
+                    key.toLowerCase().getBytes(StandardCharsets.US_ASCII))) {
+                throw new Gradebook.AppError();
+            }
+
+            // Either returns false once the book has been closed; it is dropped here if eviction has not dropped
+            // it yet, so the next pass loads it again.
+            boolean done;
+            try {
+                done = write ? entry.readers.write(command) : entry.readers.read(command);
+            } finally {
+                synchronized (entry) {
+                    entry.lastUsed = System.nanoTime();
+                }
+            }
+            if (done) {
+                return;
+            }
+            synchronized (this.books) {
+                this.books.remove(name, entry);
+            }
+        }
+    }
+
+    // Flushes modified gradebooks and evicts the ones that have been idle for too long.
+    private void maintain() {
+        long idle = TimeUnit.SECONDS.toNanos(this.idleSeconds);
+        List<Map.Entry<String, Entry>> entries;
+        synchronized (this.books) {
+            entries = new ArrayList<Map.Entry<String, Entry>>(this.books.entrySet());
+        }
+
+        for (Map.Entry<String, Entry> named : entries) {
+            Entry entry = named.getValue();
+            try {
+                entry.readers.flush();
+                long lastUsed;
+                synchronized (entry) {
+                    lastUsed = entry.lastUsed;
+                }
+                // A book that fails to save stays open, so its changes are not lost and the next pass tries again.
+                if (System.nanoTime() - lastUsed > idle) {
+                    entry.readers.close();
+                    synchronized (this.books) {
+                        this.books.remove(named.getKey(), entry);
+                    }
+                }
+            } catch (Gradebook.BackendError backendError) {
+                backendError.printStackTrace();
+            }
+        }
+    }
+
+    private void closeAll() {
+        List<Entry> entries;
+        synchronized (this.books) {
+            entries = new ArrayList<Entry>(this.books.values());
+            this.books.clear();
+        }
+
+        for (Entry entry : entries) {
+            try {
+                entry.readers.close();
+            } catch (Gradebook.BackendError backendError) {
+                backendError.printStackTrace();
+            }
+        }
+    }
+}
@@ -2,6 +2,8 @@ import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.ParameterException;
 import com.beust.jcommander.Parameters;
+import java.io.*;
+import java.nio.file.*;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -36,74 +38,141 @@ public class GradebookDisplay {
         private boolean gradeOrder;
     }
 
-    @Parameter(names = "-N", description = "Gradebook filename", validateWith = CLIUtils.GradebookFileNameValidator.class, required = true)
-    private String gradebook;
+    @Parameters(commandDescription = "Display statistics and histograms for every assignment and the final grades")
+    private static class StatisticsCommand {
+    }
 
-    @Parameter(names = "-K", description = "Encryption/Decryption key", validateWith = CLIUtils.KeyValidator.class, required = true)
-    private String key;
+    @Parameters(commandDescription = "Check the stored final grades against a full recompute; invalid if any differ")
+    private static class CheckFinalCommand {
+    }
 
-    public static void main(String[] args) {
-        int exitCode = 0;
-        Gradebook gbook = null;
+    @Parameters(commandDescription = "Export all assignments, students and grades as CSV")
+    private static class ExportCommand {
+        @Parameter(names = "-F", description = "CSV file, or - for standard output", required = true)
+        private List<String> file = new ArrayList<String>();
+    }
 
-        try {
-            GradebookDisplay app = new GradebookDisplay();
-            PrintAssignmentCommand pa = new PrintAssignmentCommand();
-            PrintStudentCommand ps = new PrintStudentCommand();
-            PrintFinalCommand pf = new PrintFinalCommand();
+    @Parameter(names = "-N", description = "Gradebook filename", validateWith = CLIUtils.GradebookFileNameValidator.class, required = true)
+    String gradebook;
 
-            JCommander cmd = JCommander.newBuilder().addObject(app).addCommand("-PA", pa).addCommand("-PS", ps)
-                    .addCommand("-PF", pf).build();
-            cmd.parse(args);
+    @Parameter(names = "-K", description = "Encryption/Decryption key", validateWith = CLIUtils.KeyValidator.class, required = true)
+    String key;
+
+    private final PrintAssignmentCommand pa = new PrintAssignmentCommand();
+    private final PrintStudentCommand ps = new PrintStudentCommand();
+    private final PrintFinalCommand pf = new PrintFinalCommand();
+    private final StatisticsCommand st = new StatisticsCommand();
+    private final CheckFinalCommand cf = new CheckFinalCommand();
+    private final ExportCommand ex = new ExportCommand();
+    private String command;
+
+    static GradebookDisplay parse(String[] args) throws ParameterException {
+        GradebookDisplay app = new GradebookDisplay();
+
+        JCommander cmd = JCommander.newBuilder().addObject(app).addCommand("-PA", app.pa).addCommand("-PS", app.ps)
+                .addCommand("-PF", app.pf).addCommand("-ST", app.st).addCommand("-CF", app.cf).addCommand("-EX", app.ex)
+                .build();
+        cmd.parse(args);
+
+        if (!(args[0].equals("-N") && args[2].equals("-K"))) {
+            throw new ParameterException("Wrong flag order");
+        }
+        if (cmd.getParsedCommand() == null) {
+            throw new ParameterException("No action specified");
+        }
 
-            if (!(args[0].equals("-N") && args[2].equals("-K"))) {
-                throw new ParameterException("Wrong flag order");
+        app.command = cmd.getParsedCommand();
+        return app;
+    }
+
+    // Output files are named relative to the caller, which for the daemon is not the current directory.
+    void resolve(Path cwd) throws ParameterException {
+        if (this.command.equals("-EX")) {
+            String file = CLIUtils.getLast(ex.file);
+            if (!file.equals("-")) {
+                ex.file.add(CLIUtils.resolve(cwd, file));
             }
-            if (cmd.getParsedCommand() == null) {
-                throw new ParameterException("No action specified");
+        }
+    }
+
+    void apply(Gradebook gbook, PrintStream out) throws Gradebook.AppError, Gradebook.BackendError {
+        if (this.command.equals("-PA")) {
+            if (pa.alphabeticalOrder == pa.gradeOrder) {
+                throw new ParameterException("Exactly one order flag must be specified");
             }
 
-            gbook = Gradebook.load_and_decrypt(app.gradebook, app.key);
+            new CLIUtils.AssignmentNameValidator().validate("-AN", CLIUtils.getLast(pa.assignmentName));
 
-            if (cmd.getParsedCommand().equals("-PA")) {
-                if (pa.alphabeticalOrder == pa.gradeOrder) {
-                    throw new ParameterException("Exactly one order flag must be specified");
-                }
+            gbook.printAssignmentGrades(CLIUtils.getLast(pa.assignmentName), pa.alphabeticalOrder, out);
+        }
 
-                new CLIUtils.AssignmentNameValidator().validate("-AN", CLIUtils.getLast(pa.assignmentName));
+        if (this.command.equals("-PS")) {
+            new CLIUtils.StudentNameValidator().validate("-FN", CLIUtils.getLast(ps.studentFirstName));
+            new CLIUtils.StudentNameValidator().validate("-LN", CLIUtils.getLast(ps.studentLastName));
 
-                gbook.printAssignmentGrades(CLIUtils.getLast(pa.assignmentName), pa.alphabeticalOrder);
+            gbook.printStudentGrades(CLIUtils.getLast(ps.studentFirstName), CLIUtils.getLast(ps.studentLastName), out);
+        }
+
+        if (this.command.equals("-PF")) {
+            if (pf.alphabeticalOrder == pf.gradeOrder) {
+                throw new ParameterException("Exactly one order flag must be specified");
             }
 
-            if (cmd.getParsedCommand().equals("-PS")) {
-                new CLIUtils.StudentNameValidator().validate("-FN", CLIUtils.getLast(ps.studentFirstName));
-                new CLIUtils.StudentNameValidator().validate("-LN", CLIUtils.getLast(ps.studentLastName));
+            gbook.printFinalGrades(pf.alphabeticalOrder, out);
+        }
 
-                gbook.printStudentGrades(CLIUtils.getLast(ps.studentFirstName), CLIUtils.getLast(ps.studentLastName));
-            }
+        if (this.command.equals("-ST")) {
+            gbook.printStatistics(out);
+        }
 
-            if (cmd.getParsedCommand().equals("-PF")) {
-                if (pf.alphabeticalOrder == pf.gradeOrder) {
-                    throw new ParameterException("Exactly one order flag must be specified");
-                }
+        // Mismatches are printed and then fail the command, so that scripts can tell.
+        if (this.command.equals("-CF") && gbook.checkFinalGrades(out) > 0) {
+            throw new Gradebook.AppError();
+        }
 
-                gbook.printFinalGrades(pf.alphabeticalOrder);
+        if (this.command.equals("-EX")) {
+            String file = CLIUtils.getLast(ex.file);
+            if (file.equals("-")) {
+                gbook.exportCsv(new BufferedWriter(new OutputStreamWriter(out), 1 << 16));
+            } else {
+                try (Writer writer = Files.newBufferedWriter(Paths.get(file))) {
+                    gbook.exportCsv(writer);
+                } catch (IOException e) {
+                    throw new Gradebook.BackendError(e);
+                }
             }
+        }
+    }
+
+    public static void main(String[] args) {
+        int exitCode = 0;
+        Gradebook gbook = null;
+        Exception failure = null;
+        GradebookMetrics.begin("display");
+
+        try {
+            GradebookDisplay app = parse(args);
+            gbook = Gradebook.load_and_decrypt(app.gradebook, app.key, true);
+            app.apply(gbook, System.out);
         } catch (ParameterException | Gradebook.AppError appError) {
             System.out.println("invalid");
             exitCode = 255;
+            failure = appError;
         } catch (Gradebook.BackendError backendError) {
             backendError.printStackTrace();
+            failure = backendError;
         }
 
         if (gbook != null) {
             try {
-                gbook.save_and_encrypt();
+                gbook.close();
             } catch (Gradebook.BackendError backendError) {
                 backendError.printStackTrace();
+                failure = backendError;
             }
         }
 
+        GradebookMetrics.end(failure);
         System.exit(exitCode);
     }
 }
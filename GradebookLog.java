@@ -0,0 +1,352 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+import javax.crypto.*;
+
+// Append-only log of the changes made since a gradebook file was last written, kept in <file>.log so that a small
+// change costs one small record instead of a new snapshot.
+//
+//   header:  magic "SGBL" | version (1 byte) | id of the snapshot the log extends (16 bytes) | two commit slots
+//   commit:  record count (8 bytes) | nonce (12 bytes) | tag (16 bytes)
+//   records: payload length (4 bytes) | nonce (12 bytes) | AEAD(payload) | tag (16 bytes)
+//
+// Records and commits are sealed with the same AEAD as the snapshot they extend, each under a fresh random nonce.
+// A record's associated data is the snapshot id, its sequence number, its length and the tag of the record before
+// it, so records cannot be reordered, changed or carried over to another snapshot. After each record is synced,
+// the new record count is sealed, together with the tag of the last record, into the slot that held the count
+// before last, and synced in turn. The slots alternate so that a torn commit leaves the previous one intact.
+//
+// On load, every record that a commit covers must authenticate. The record after the newest commit was never
+// acknowledged, so a crash mid-append may leave it short, or complete in length but torn or zero-filled; it is
+// discarded and overwritten by the next append. The slots must hold the last two counts, except that the record
+// after the newest one may be complete while its commit is missing or torn. Anything else, including records cut
+// off at a record boundary, means the log was tampered with. Only removing the whole log,
+// or putting back an earlier copy of it, cannot be told from a book that had no later changes. A log whose id does
+// not match the snapshot was left behind by a save that replaced it and is ignored.
+//
+// Version 1 logs had no commit slots and chained nothing but the sequence number. They are still replayed; the
+// next save folds them into a snapshot rather than appending to them.
+public class GradebookLog {
+    private static final byte[] MAGIC = { 'S', 'G', 'B', 'L' };
+    private static final byte VERSION = 2;
+    private static final byte LEGACY_VERSION = 1;
+    private static final int ID_SIZE = 16;
+    private static final int LENGTH_SIZE = 4;
+    private static final int COUNT_SIZE = 8;
+    private static final int NONCE_SIZE = 12;
+    private static final int TAG_SIZE = 16;
+    private static final int COMMIT_SIZE = COUNT_SIZE + NONCE_SIZE + TAG_SIZE;
+    private static final int LEGACY_HEADER_SIZE = MAGIC.length + 1 + ID_SIZE;
+    private static final int HEADER_SIZE = LEGACY_HEADER_SIZE + 2 * COMMIT_SIZE;
+
+    private final Path file;
+    private final SecretKey key;
+    private GradebookFile.Aead aead;
+    private byte[] snapshot;
+    private FileChannel out;
+    // Where the next record goes, or 0 if the log has to be started over, how many records precede it, the tag of
+    // the last of them and how many of them the commit slots account for.
+    private long end;
+    private long sequence;
+    private byte[] last;
+    private long committed;
+    // Set when the records read back came from a version 1 log.
+    private boolean legacy;
+
+    private GradebookLog(Path file, SecretKey key, GradebookFile.Aead aead, byte[] snapshot) {
+        this.file = file;
+        this.key = key;
+        this.aead = aead;
+        this.snapshot = snapshot;
+        this.out = null;
+        this.end = 0;
+        this.sequence = 0;
+        this.last = new byte[TAG_SIZE];
+        this.committed = 0;
+        this.legacy = false;
+    }
+
+    // Reads the log next to book, adding the payload of every record that extends the snapshot with the given id to
+    // records, in order. A null id stands for a file that no log can extend.
+    public static GradebookLog open(Path book, SecretKey key, GradebookFile.Aead aead, byte[] snapshot,
+            List<byte[]> records) throws Gradebook.AppError, Gradebook.BackendError {
+        return open(book, key, aead, snapshot, false, records);
+    }
+
+    // As above, for a reader that does not hold the writer lock when shared is set. A writer may then be appending
+    // while this reads, so the log is read as of its commit slots: records past the one after the newest commit, and
+    // a record after the newest commit that does not authenticate yet, are left out.
+    public static GradebookLog open(Path book, SecretKey key, GradebookFile.Aead aead, byte[] snapshot,
+            boolean shared, List<byte[]> records) throws Gradebook.AppError, Gradebook.BackendError {
+        GradebookLog log = new GradebookLog(book.resolveSibling(book.getFileName() + ".log"), key, aead, snapshot);
+        if (snapshot == null) {
+            return log;
+        }
+
+        try (FileChannel in = FileChannel.open(log.file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(in, header);
+            // A header cut short can only come from a crash while the first record was being appended.
+            if (header.position() < LEGACY_HEADER_SIZE
+                    || !Arrays.equals(header.array(), 0, MAGIC.length, MAGIC, 0, MAGIC.length)
+                    || !Arrays.equals(header.array(), MAGIC.length + 1, LEGACY_HEADER_SIZE, snapshot, 0, ID_SIZE)) {
+                return log;
+            }
+            long position;
+            if (header.get(MAGIC.length) == LEGACY_VERSION) {
+                log.legacy = true;
+                position = LEGACY_HEADER_SIZE;
+            } else if (header.get(MAGIC.length) == VERSION && !header.hasRemaining()) {
+                position = HEADER_SIZE;
+            } else {
+                return log;
+            }
+
+            Cipher cipher = aead.cipher();
+            SecretKey sealKey = aead.key(key);
+            List<byte[]> tags = new ArrayList<byte[]>();
+            // Only a shared reader stops early: at the newest count a commit slot held when the header was read, not
+            // yet authenticated, plus the record that may have been in flight.
+            long limit = shared && !log.legacy
+                    ? Math.max(rawCount(header, 0), rawCount(header, 1)) + 1 : Long.MAX_VALUE;
+            boolean failed = false;
+            long size = in.size();
+            ByteBuffer prefix = ByteBuffer.allocate(LENGTH_SIZE + NONCE_SIZE);
+            while (position < size && log.sequence < limit) {
+                prefix.clear();
+                in.position(position);
+                readFully(in, prefix);
+                int length = prefix.getInt(0);
+                long next = position + LENGTH_SIZE + NONCE_SIZE + (long) length + TAG_SIZE;
+                if (prefix.hasRemaining() || length < 0 || next > size) {
+                    break;
+                }
+
+                ByteBuffer sealed = ByteBuffer.allocate(length + TAG_SIZE);
+                readFully(in, sealed);
+                byte[] payload;
+                try {
+                    aead.init(cipher, Cipher.DECRYPT_MODE, sealKey, prefix.array(), LENGTH_SIZE);
+                    cipher.updateAAD(log.associatedData(length));
+                    payload = cipher.doFinal(sealed.array());
+                } catch (AEADBadTagException ignored) {
+                    failed = true;
+                    break;
+                }
+
+                records.add(payload);
+                log.last = Arrays.copyOfRange(sealed.array(), length, length + TAG_SIZE);
+                tags.add(log.last);
+                position = next;
+                log.sequence++;
+            }
+
+            if (log.legacy) {
+                if (failed) {
+                    throw new Gradebook.AppError();
+                }
+                // Nothing more is appended to a version 1 log; the next append starts a new one.
+                log.end = 0;
+                return log;
+            }
+            int read = tags.size();
+            log.committed = log.verifyCommits(cipher, sealKey, header, tags, shared);
+            // A record that does not authenticate may only be the one after the newest commit, which was never
+            // acknowledged; the next append overwrites it.
+            if (failed && read != log.committed && !(shared && read == limit - 1)) {
+                throw new Gradebook.AppError();
+            }
+            records.subList(records.size() - read + tags.size(), records.size()).clear();
+            log.end = position;
+        } catch (NoSuchFileException e) {
+            // No log, or one that a writer folding it into a new snapshot removed before it could be opened.
+            return log;
+        } catch (IOException | GeneralSecurityException e) {
+            throw new Gradebook.BackendError(e);
+        }
+        return log;
+    }
+
+    // Checks the commit slots against the records read, and returns the count they account for. A shared reader
+    // may have read a record appended after the header; it is left out of the log as read.
+    private long verifyCommits(Cipher cipher, SecretKey sealKey, ByteBuffer header, List<byte[]> tags,
+            boolean shared) throws Gradebook.AppError, GeneralSecurityException {
+        long even = readCommit(cipher, sealKey, header, 0, tags);
+        long odd = readCommit(cipher, sealKey, header, 1, tags);
+        long newest = Math.max(even, odd);
+        long current = newest % 2 == 0 ? even : odd;
+        long previous = newest % 2 == 0 ? odd : even;
+        if (shared && newest >= 0 && tags.size() > newest + 1) {
+            this.sequence = newest + 1;
+            tags.subList((int) this.sequence, tags.size()).clear();
+            this.last = tags.get(tags.size() - 1);
+        }
+        boolean intact = previous == Math.max(newest - 1, 0);
+        boolean torn = previous < 0 && tags.size() == newest + 1;
+        if (newest < 0 || current != newest || !(intact || torn) || tags.size() > newest + 1) {
+            throw new Gradebook.AppError();
+        }
+        return newest;
+    }
+
+    // The count a commit slot holds, unauthenticated, or 0 for one never written.
+    private static long rawCount(ByteBuffer header, int slot) {
+        return Math.max(0, header.getLong(LEGACY_HEADER_SIZE + slot * COMMIT_SIZE));
+    }
+
+    // The count sealed in the given slot: 0 for a slot never written, -1 for one that does not authenticate
+    // against the records read.
+    private long readCommit(Cipher cipher, SecretKey sealKey, ByteBuffer header, int slot, List<byte[]> tags)
+            throws GeneralSecurityException {
+        int offset = LEGACY_HEADER_SIZE + slot * COMMIT_SIZE;
+        byte[] commit = Arrays.copyOfRange(header.array(), offset, offset + COMMIT_SIZE);
+        if (Arrays.equals(commit, new byte[COMMIT_SIZE])) {
+            return 0;
+        }
+        long count = ByteBuffer.wrap(commit).getLong();
+        if (count < 1 || count > tags.size() || count % 2 != slot) {
+            return -1;
+        }
+        try {
+            this.aead.init(cipher, Cipher.DECRYPT_MODE, sealKey, commit, COUNT_SIZE);
+            cipher.updateAAD(commitData(slot, count, tags.get((int) (count - 1))));
+            cipher.doFinal(commit, COUNT_SIZE + NONCE_SIZE, TAG_SIZE);
+        } catch (AEADBadTagException ignored) {
+            return -1;
+        }
+        return count;
+    }
+
+    // Bytes the log takes on disk, so that the caller can decide when to fold it into a new snapshot.
+    public long size() {
+        return this.end;
+    }
+
+    // True when the records read came from a version 1 log, which a writer has to fold into a new snapshot before
+    // logging anything else.
+    public boolean legacy() {
+        return this.legacy && this.sequence > 0;
+    }
+
+    // Seals payload as the next record, then commits it, and makes both durable before returning.
+    public void append(byte[] payload) throws Gradebook.BackendError {
+        long started = GradebookMetrics.start(GradebookMetrics.Phase.LOG);
+        try {
+            if (this.out == null) {
+                this.out = FileChannel.open(this.file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            }
+            if (this.end == 0) {
+                this.out.truncate(0);
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.put(MAGIC).put(VERSION).put(this.snapshot, 0, ID_SIZE).position(HEADER_SIZE).flip();
+                writeFully(this.out, header, 0);
+                this.end = HEADER_SIZE;
+                this.sequence = 0;
+                this.last = new byte[TAG_SIZE];
+                this.committed = 0;
+                this.legacy = false;
+            } else {
+                this.out.truncate(this.end);
+            }
+            // A record that a crash left without its commit is committed before anything follows it.
+            if (this.committed < this.sequence) {
+                commit();
+            }
+
+            byte[] nonce = new byte[NONCE_SIZE];
+            GradebookFile.random().nextBytes(nonce);
+            Cipher cipher = this.aead.cipher();
+            this.aead.init(cipher, Cipher.ENCRYPT_MODE, this.aead.key(this.key), nonce, 0);
+            cipher.updateAAD(associatedData(payload.length));
+            byte[] sealed = cipher.doFinal(payload);
+            ByteBuffer record = ByteBuffer.allocate(LENGTH_SIZE + NONCE_SIZE + sealed.length);
+            record.putInt(payload.length).put(nonce).put(sealed).flip();
+            writeFully(this.out, record, this.end);
+            this.out.force(false);
+
+            this.end += record.limit();
+            this.sequence++;
+            this.last = Arrays.copyOfRange(sealed, payload.length, sealed.length);
+            commit();
+        } catch (IOException | GeneralSecurityException e) {
+            throw new Gradebook.BackendError(e);
+        }
+        GradebookMetrics.stop(GradebookMetrics.Phase.LOG, started, payload.length);
+    }
+
+    // Seals the record count into its slot and syncs it, so that a commit only ever follows the records it counts.
+    private void commit() throws IOException, GeneralSecurityException {
+        int slot = (int) (this.sequence % 2);
+        byte[] nonce = new byte[NONCE_SIZE];
+        GradebookFile.random().nextBytes(nonce);
+        Cipher cipher = this.aead.cipher();
+        this.aead.init(cipher, Cipher.ENCRYPT_MODE, this.aead.key(this.key), nonce, 0);
+        cipher.updateAAD(commitData(slot, this.sequence, this.last));
+        ByteBuffer commit = ByteBuffer.allocate(COMMIT_SIZE);
+        commit.putLong(this.sequence).put(nonce).put(cipher.doFinal()).flip();
+        writeFully(this.out, commit, LEGACY_HEADER_SIZE + slot * COMMIT_SIZE);
+        this.out.force(false);
+        this.committed = this.sequence;
+    }
+
+    // Starts the log over for a new snapshot. The old log is removed only once the snapshot that replaces it is on
+    // disk; if that removal is lost to a crash, the id in its header no longer matches and it is ignored.
+    public void reset(GradebookFile.Aead aead, byte[] snapshot) throws Gradebook.BackendError {
+        close();
+        this.aead = aead;
+        this.snapshot = snapshot;
+        this.end = 0;
+        this.sequence = 0;
+        this.last = new byte[TAG_SIZE];
+        this.committed = 0;
+        this.legacy = false;
+        try {
+            Files.deleteIfExists(this.file);
+        } catch (IOException e) {
+            throw new Gradebook.BackendError(e);
+        }
+    }
+
+    public void close() throws Gradebook.BackendError {
+        if (this.out == null) {
+            return;
+        }
+        try {
+            this.out.close();
+            this.out = null;
+        } catch (IOException e) {
+            throw new Gradebook.BackendError(e);
+        }
+    }
+
+    private byte[] associatedData(int length) {
+        ByteBuffer data = ByteBuffer.allocate(ID_SIZE + COUNT_SIZE + LENGTH_SIZE + (this.legacy ? 0 : TAG_SIZE));
+        data.put(this.snapshot, 0, ID_SIZE).putLong(this.sequence).putInt(length);
+        if (!this.legacy) {
+            data.put(this.last);
+        }
+        return data.array();
+    }
+
+    private byte[] commitData(int slot, long count, byte[] tag) {
+        return ByteBuffer.allocate(ID_SIZE + 1 + COUNT_SIZE + TAG_SIZE).put(this.snapshot, 0, ID_SIZE)
+                .put((byte) slot).putLong(count).put(tag).array();
+    }
+
+    private static void readFully(FileChannel in, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            if (in.read(buf) < 0) {
+                break;
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            position += out.write(buf, position);
+        }
+    }
+}
@@ -0,0 +1,261 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import javax.management.*;
+
+// Per-command timings and byte counts of the phases a gradebook command goes through, so that a slow or failed
+// command can be attributed to the file read, decryption, opening the database, the statements themselves,
+// re-encryption or the write. Off unless -Dgradebook.metrics names where to report:
+//
+//   stderr       one JSON line per command on standard error
+//   file:<path>  the same lines appended to <path>
+//   jmx          running totals in the MXBean "Gradebook:type=Metrics", for long-lived processes such as the daemon
+//
+// A line looks like
+//   {"command":"add","ms":12.41,"phases":{"read":{"ms":0.31,"bytes":118784},...},"error":null}
+// where error, when the command failed, names the phase it failed in and the chain of causes.
+//
+// When metrics are off, every hook is a test of a static final flag that the JIT folds away.
+public class GradebookMetrics {
+    public enum Phase {
+        // Waiting for the writer lock.
+        LOCK,
+        // Reading ciphertext, and authenticating and decrypting it.
+        READ, DECRYPT,
+        // Inflating the chunks of a compressed file, or deflating them on save.
+        COMPRESS,
+        // Loading the decrypted image into the backend and migrating it, then replaying the log on top.
+        OPEN, REPLAY,
+        // Running mutations and queries against the backend, including printing their results.
+        EXECUTE,
+        // Serializing the backend, encrypting the changed pages, writing them and syncing the new file into place.
+        SERIALIZE, ENCRYPT, WRITE, SYNC,
+        // Appending a record to the log, sync included.
+        LOG;
+
+        private final String label = name().toLowerCase(Locale.ROOT);
+    }
+
+    public static final boolean ENABLED = System.getProperty("gradebook.metrics") != null;
+
+    private static final Phase[] PHASES = Phase.values();
+    private static final ThreadLocal<Trace> TRACE = new ThreadLocal<Trace>();
+    private static Totals totals = null;
+
+    private static class Trace {
+        private final String command;
+        private final long started;
+        private final long[] nanos;
+        private final long[] bytes;
+        private Phase running;
+
+        private Trace(String command) {
+            this.command = command;
+            this.started = System.nanoTime();
+            this.nanos = new long[PHASES.length];
+            this.bytes = new long[PHASES.length];
+            this.running = null;
+        }
+    }
+
+    // Totals over every command since the process started.
+    public interface TotalsMXBean {
+        long getCommands();
+
+        long getFailures();
+
+        Map<String, Long> getPhaseNanos();
+
+        Map<String, Long> getPhaseBytes();
+
+        String getLastError();
+    }
+
+    private static class Totals implements TotalsMXBean {
+        private long commands = 0;
+        private long failures = 0;
+        private final long[] nanos = new long[PHASES.length];
+        private final long[] bytes = new long[PHASES.length];
+        private String lastError = null;
+
+        private synchronized void add(Trace trace, String error) {
+            this.commands++;
+            if (error != null) {
+                this.failures++;
+                this.lastError = error;
+            }
+            for (int i = 0; i < PHASES.length; i++) {
+                this.nanos[i] += trace.nanos[i];
+                this.bytes[i] += trace.bytes[i];
+            }
+        }
+
+        public synchronized long getCommands() {
+            return this.commands;
+        }
+
+        public synchronized long getFailures() {
+            return this.failures;
+        }
+
+        public synchronized Map<String, Long> getPhaseNanos() {
+            return byPhase(this.nanos);
+        }
+
+        public synchronized Map<String, Long> getPhaseBytes() {
+            return byPhase(this.bytes);
+        }
+
+        public synchronized String getLastError() {
+            return this.lastError;
+        }
+
+        private static Map<String, Long> byPhase(long[] values) {
+            Map<String, Long> map = new LinkedHashMap<String, Long>();
+            for (Phase phase : PHASES) {
+                map.put(phase.label, values[phase.ordinal()]);
+            }
+            return map;
+        }
+    }
+
+    // Starts collecting for a command run on this thread, replacing whatever an unfinished one left behind.
+    public static void begin(String command) {
+        if (!ENABLED) {
+            return;
+        }
+        TRACE.set(new Trace(command));
+    }
+
+    // Marks the start of phase on this thread; pass the result to stop().
+    public static long start(Phase phase) {
+        if (!ENABLED) {
+            return 0;
+        }
+        Trace trace = TRACE.get();
+        if (trace != null) {
+            trace.running = phase;
+        }
+        return System.nanoTime();
+    }
+
+    public static void stop(Phase phase, long start) {
+        stop(phase, start, 0);
+    }
+
+    // Adds the time since start, and bytes handled, to phase. A phase that is started but never stopped is the one
+    // a failed command is reported to have failed in.
+    public static void stop(Phase phase, long start, long bytes) {
+        if (!ENABLED) {
+            return;
+        }
+        Trace trace = TRACE.get();
+        if (trace == null) {
+            return;
+        }
+        trace.nanos[phase.ordinal()] += System.nanoTime() - start;
+        trace.bytes[phase.ordinal()] += bytes;
+        trace.running = null;
+    }
+
+    // Reports the command begun on this thread; error is what it failed with, or null.
+    public static void end(Throwable error) {
+        if (!ENABLED) {
+            return;
+        }
+        Trace trace = TRACE.get();
+        if (trace == null) {
+            return;
+        }
+        TRACE.remove();
+        long elapsed = System.nanoTime() - trace.started;
+        String failure = error == null ? null : describe(trace.running, error);
+
+        String sink = System.getProperty("gradebook.metrics");
+        try {
+            if (sink.equals("jmx")) {
+                totals().add(trace, failure);
+            } else if (sink.equals("stderr")) {
+                System.err.println(json(trace, elapsed, failure));
+            } else if (sink.startsWith("file:")) {
+                Files.write(Paths.get(sink.substring("file:".length())),
+                        (json(trace, elapsed, failure) + "\n").getBytes(StandardCharsets.UTF_8),
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            }
+        } catch (IOException | JMException e) {
+            // Losing a report must not fail the command it describes.
+            e.printStackTrace();
+        }
+    }
+
+    private static synchronized Totals totals() throws JMException {
+        if (totals == null) {
+            totals = new Totals();
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    new StandardMBean(totals, TotalsMXBean.class, true), new ObjectName("Gradebook:type=Metrics"));
+        }
+        return totals;
+    }
+
+    private static String describe(Phase running, Throwable error) {
+        StringBuilder out = new StringBuilder();
+        if (running != null) {
+            out.append(running.label).append(": ");
+        }
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause != error) {
+                out.append(" <- ");
+            }
+            out.append(cause.getClass().getName());
+            // Wrapping an exception copies its description into the message; the next link shows it anyway.
+            if (cause.getMessage() != null
+                    && (cause.getCause() == null || !cause.getMessage().equals(cause.getCause().toString()))) {
+                out.append(": ").append(cause.getMessage());
+            }
+        }
+        return out.toString();
+    }
+
+    private static String json(Trace trace, long elapsed, String failure) {
+        StringBuilder out = new StringBuilder("{\"command\":");
+        quote(out, trace.command);
+        out.append(",\"ms\":").append(String.format(Locale.ROOT, "%.2f", elapsed / 1e6)).append(",\"phases\":{");
+        boolean first = true;
+        for (Phase phase : PHASES) {
+            if (trace.nanos[phase.ordinal()] == 0) {
+                continue;
+            }
+            if (!first) {
+                out.append(',');
+            }
+            first = false;
+            quote(out, phase.label);
+            out.append(":{\"ms\":").append(String.format(Locale.ROOT, "%.2f", trace.nanos[phase.ordinal()] / 1e6))
+                    .append(",\"bytes\":").append(trace.bytes[phase.ordinal()]).append('}');
+        }
+        out.append("},\"error\":");
+        if (failure == null) {
+            out.append("null");
+        } else {
+            quote(out, failure);
+        }
+        return out.append('}').toString();
+    }
+
+    private static void quote(StringBuilder out, String s) {
+        out.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.append('\\').append(c);
+            } else if (c < 0x20) {
+                out.append(String.format("\\u%04x", (int) c));
+            } else {
+                out.append(c);
+            }
+        }
+        out.append('"');
+    }
+}
@@ -0,0 +1,127 @@
+import java.io.*;
+
+// Formats display rows such as "(Lee, Ann, 95)" straight into a reusable byte buffer and hands the sink large
+// blocks, instead of building a String per row and flushing the stream after every line. The bytes are the same
+// as println of the concatenated row would print.
+public class GradebookOutput {
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final byte[] NEWLINE = System.lineSeparator().getBytes();
+
+    private final byte[] buffer;
+    private final StringBuilder number;
+    private OutputStream out;
+    private int position;
+    private boolean first;
+
+    public GradebookOutput() {
+        this.buffer = new byte[BUFFER_SIZE];
+        this.number = new StringBuilder();
+        this.out = null;
+        this.position = 0;
+        this.first = true;
+    }
+
+    // Points the buffer at a new sink. Anything not yet flushed to the previous one is dropped.
+    public GradebookOutput to(OutputStream out) {
+        this.out = out;
+        this.position = 0;
+        return this;
+    }
+
+    public void beginRow() throws IOException {
+        put((byte) '(');
+        this.first = true;
+    }
+
+    public void endRow() throws IOException {
+        put((byte) ')');
+        for (byte b : NEWLINE) {
+            put(b);
+        }
+    }
+
+    public void field(String text) throws IOException {
+        separate();
+        if (text == null) {
+            text = "null";
+        }
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) >= 0x80) {
+                write(text.getBytes());
+                return;
+            }
+        }
+        for (int i = 0; i < text.length(); i++) {
+            put((byte) text.charAt(i));
+        }
+    }
+
+    public void field(int value) throws IOException {
+        separate();
+        if (value < 0) {
+            put((byte) '-');
+        }
+        long magnitude = Math.abs((long) value);
+
+        int digits = 1;
+        for (long rest = magnitude / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        if (this.buffer.length - this.position < digits) {
+            flushBuffer();
+        }
+        for (int i = this.position + digits - 1; i >= this.position; i--) {
+            this.buffer[i] = (byte) ('0' + magnitude % 10);
+            magnitude /= 10;
+        }
+        this.position += digits;
+    }
+
+    // Same digits as Double.toString, formatted into a reused builder rather than a new String.
+    public void field(double value) throws IOException {
+        separate();
+        this.number.setLength(0);
+        this.number.append(value);
+        for (int i = 0; i < this.number.length(); i++) {
+            put((byte) this.number.charAt(i));
+        }
+    }
+
+    public void flush() throws IOException {
+        flushBuffer();
+        this.out.flush();
+    }
+
+    private void separate() throws IOException {
+        if (this.first) {
+            this.first = false;
+        } else {
+            put((byte) ',');
+            put((byte) ' ');
+        }
+    }
+
+    private void put(byte b) throws IOException {
+        if (this.position == this.buffer.length) {
+            flushBuffer();
+        }
+        this.buffer[this.position++] = b;
+    }
+
+    private void write(byte[] bytes) throws IOException {
+        if (bytes.length > this.buffer.length - this.position) {
+            flushBuffer();
+            if (bytes.length > this.buffer.length) {
+                this.out.write(bytes);
+                return;
+            }
+        }
+        System.arraycopy(bytes, 0, this.buffer, this.position, bytes.length);
+        this.position += bytes.length;
+    }
+
+    private void flushBuffer() throws IOException {
+        this.out.write(this.buffer, 0, this.position);
+        this.position = 0;
+    }
+}
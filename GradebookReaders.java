@@ -0,0 +1,122 @@
+import java.util.*;
+
+// Serves queries on one open book from any number of threads while changes keep coming in. Changes go to the
+// writer one at a time. Each query runs on a read-only snapshot of the book as it stood after the last change
+// before the query started, so it never sees part of a change and never holds up the writer while it runs.
+//
+// An in-memory SQLite database cannot use WAL, so snapshots are copies: the writer's image is taken once per
+// version, under the writer's lock, and loaded into a fresh read-only book outside it. Up to maxIdle snapshots of
+// the current version are kept for reuse, so that a burst of queries between two changes loads the image once per
+// thread rather than once per query.
+public class GradebookReaders {
+    private record Snapshot(long version, Gradebook gbook) {
+    }
+
+    private final Gradebook writer;
+    private final int maxIdle;
+    private final Deque<Snapshot> idle;
+    // Bumped by every change; the image, when not null, is of the version it was taken at.
+    private long version;
+    private byte[] image;
+    private long imageVersion;
+    private boolean closed;
+
+    public GradebookReaders(Gradebook writer, int maxIdle) {
+        this.writer = writer;
+        this.maxIdle = maxIdle;
+        this.idle = new ArrayDeque<Snapshot>();
+        this.version = 0;
+        this.image = null;
+        this.imageVersion = -1;
+        this.closed = false;
+    }
+
+    // Applies mutation to the writer. Queries that start afterwards see all of it. Returns false, without applying
+    // it, once this has been closed.
+    public synchronized boolean write(Gradebook.Mutation mutation) throws Gradebook.AppError, Gradebook.BackendError {
+        if (this.closed) {
+            return false;
+        }
+        try {
+            mutation.apply(this.writer);
+        } finally {
+            this.version++;
+        }
+        return true;
+    }
+
+    // Runs query on a snapshot of the current version. Returns false, without running it, once this has been
+    // closed.
+    public boolean read(Gradebook.Mutation query) throws Gradebook.AppError, Gradebook.BackendError {
+        Gradebook snapshot = null;
+        byte[] image;
+        long version;
+        List<Gradebook> stale = new ArrayList<Gradebook>();
+        synchronized (this) {
+            if (this.closed) {
+                return false;
+            }
+            version = this.version;
+            while (snapshot == null && !this.idle.isEmpty()) {
+                Snapshot next = this.idle.pop();
+                if (next.version() == version) {
+                    snapshot = next.gbook();
+                } else {
+                    stale.add(next.gbook());
+                }
+            }
+            if (snapshot == null && this.imageVersion != version) {
+                this.image = this.writer.image();
+                this.imageVersion = version;
+            }
+            image = this.image;
+        }
+        for (Gradebook gbook : stale) {
+            gbook.close();
+        }
+
+        if (snapshot == null) {
+            snapshot = Gradebook.fromImage(this.writer.name(), image);
+        }
+        try {
+            query.apply(snapshot);
+        } finally {
+            synchronized (this) {
+                if (!this.closed && version == this.version && this.idle.size() < this.maxIdle) {
+                    this.idle.push(new Snapshot(version, snapshot));
+                    snapshot = null;
+                }
+            }
+            if (snapshot != null) {
+                snapshot.close();
+            }
+        }
+        return true;
+    }
+
+    public synchronized void flush() throws Gradebook.BackendError {
+        if (!this.closed) {
+            this.writer.flush();
+        }
+    }
+
+    // Saves and closes the writer and drops the idle snapshots. Queries still running finish on their snapshot;
+    // later calls to write and read return false. If the save fails, this stays open with every change kept, and
+    // can be closed again later.
+    public synchronized void close() throws Gradebook.BackendError {
+        if (this.closed) {
+            return;
+        }
+        this.writer.flush();
+        this.closed = true;
+        this.image = null;
+        try {
+            for (Snapshot snapshot : this.idle) {
+                snapshot.gbook().close();
+            }
+            this.idle.clear();
+        } finally {
+            this.writer.save_and_encrypt();
+        }
+    }
+}
@@ -8,6 +8,7 @@ public class GradebookSetup {
     private String gradebook;
 
     public static void main(String[] args) {
+        GradebookMetrics.begin("setup");
         try {
             GradebookSetup app = new GradebookSetup();
 
@@ -16,11 +17,14 @@ public class GradebookSetup {
 
             String key = Gradebook.create(app.gradebook);
             System.out.println("Key: " + key);
+            GradebookMetrics.end(null);
         } catch (ParameterException | Gradebook.AppError appError) {
             System.out.println("invalid");
+            GradebookMetrics.end(appError);
             System.exit(255);
         } catch (Gradebook.BackendError backendError) {
             backendError.printStackTrace();
+            GradebookMetrics.end(backendError);
         }
     }
 }
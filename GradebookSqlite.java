@@ -0,0 +1,847 @@
+import java.io.*;
+import java.sql.*;
+import java.util.*;
+import org.sqlite.*;
+
+// The original backend: an in-memory SQLite database, serialized whole into the gradebook file.
+public class GradebookSqlite implements GradebookBackend {
+    private final Connection db;
+    private final Map<String, PreparedStatement> statements;
+    private final boolean reuseStatements;
+    private final Deque<Savepoint> savepoints;
+    private int schemaVersion;
+
+    private GradebookSqlite(Connection db) {
+        this.db = db;
+        this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                if (size() <= STATEMENT_CACHE_SIZE) {
+                    return false;
+                }
+                try {
+                    eldest.getValue().close();
+                } catch (SQLException ignored) {
+                }
+                return true;
+            }
+        };
+        this.reuseStatements = !System.getProperty("gradebook.reuseStatements", "true").equals("false");
+        this.savepoints = new ArrayDeque<Savepoint>();
+        this.schemaVersion = 0;
+    }
+
+    // SQLite files start with this header, which tells them apart from other backends' data.
+    static final byte[] MAGIC = "SQLite format 3\0".getBytes();
+
+    public static GradebookSqlite create() throws Gradebook.BackendError {
+        try {
+            GradebookSqlite sqlite = new GradebookSqlite(DriverManager.getConnection("jdbc:sqlite::memory:"));
+            sqlite.applyPragmas();
+
+            try (Statement schema = sqlite.db.createStatement()) {
+                schema.execute(
+                        "CREATE TABLE assignments(assignmentID INTEGER PRIMARY KEY AUTOINCREMENT, assignmentName TEXT NOT NULL UNIQUE, points INTEGER NOT NULL, weight REAL NOT NULL);");
+
+                schema.execute(
+                        "CREATE TRIGGER validate_total_assignment_weights BEFORE INSERT ON assignments BEGIN SELECT CASE WHEN (SELECT SUM(weight) FROM assignments) + NEW.weight > 1.0 THEN RAISE (ABORT, \"Assignment weights above 1.0\") END; END;");
+
+                schema.execute(
+                        "CREATE TABLE students(studentID INTEGER PRIMARY KEY AUTOINCREMENT, firstName TEXT NOT NULL, lastName TEXT NOT NULL, UNIQUE(firstName, lastName));");
+
+                schema.execute(
+                        "CREATE TABLE grades(gradeID INTEGER PRIMARY KEY AUTOINCREMENT, studentID INTEGER NOT NULL, assignmentID INTEGER NOT NULL, grade INTEGER NOT NULL,"
+                                + "FOREIGN KEY (studentID) REFERENCES students (studentID) ON DELETE CASCADE, FOREIGN KEY (assignmentID) REFERENCES assignments (assignmentID) ON DELETE CASCADE,"
+                                + "UNIQUE(studentID, assignmentID));");
+
+                schema.execute(
+                        "CREATE TRIGGER validate_grade BEFORE UPDATE ON grades BEGIN SELECT CASE WHEN NEW.grade > (SELECT points FROM assignments WHERE assignmentID = NEW.assignmentID) THEN RAISE (ABORT, \"Grade above assignment points\") END; END;");
+            }
+            sqlite.migrate();
+            return sqlite;
+        } catch (SQLException e) {
+            throw new Gradebook.BackendError(e);
+        }
+    }
+
+    public static GradebookSqlite load(byte[] data) throws Gradebook.AppError {
+        try {
+            GradebookSqlite sqlite = new GradebookSqlite(DriverManager.getConnection("jdbc:sqlite::memory:"));
+            sqlite.db.unwrap(SQLiteConnection.class).deserialize("main", data);
+            sqlite.applyPragmas();
+            try (ResultSet row = sqlite.prepare("PRAGMA user_version;").executeQuery()) {
+                sqlite.schemaVersion = row.getInt(1);
+            }
+            return sqlite;
+        } catch (SQLException ignored) {
+            throw new Gradebook.AppError();
+        }
+    }
+
+    public byte[] serialize() throws Gradebook.BackendError {
+        try {
+            return this.db.unwrap(SQLiteConnection.class).serialize("main");
+        } catch (SQLException e) {
+            throw new Gradebook.BackendError(e);
+        }
+    }
+
+    public int pageSize() throws Gradebook.BackendError {
+        try (ResultSet row = prepare("PRAGMA page_size;").executeQuery()) {
+            return row.getInt(1);
+        } catch (SQLException e) {
+            throw new Gradebook.BackendError(e);
+        }
+    }
+
+    public void close() throws Gradebook.BackendError {
+        try {
+            for (PreparedStatement sql : this.statements.values()) {
+                sql.close();
+            }
+            this.statements.clear();
+            this.db.close();
+        } catch (SQLException e) {
+            throw new Gradebook.BackendError(e);
+        }
+    }
+
+    public void readOnly() throws Gradebook.BackendError {
+        try {
+            prepare("PRAGMA query_only = ON;").execute();
+        } catch (SQLException e) {
+            throw new Gradebook.BackendError(e);
+        }
+    }
+
+    // Deleting students and assignments leaves free pages behind, which would be compressed and sealed along with
+    // the rest; VACUUM rebuilds the database without them.
+    public void trim() throws Gradebook.BackendError {
+        try (ResultSet row = prepare("PRAGMA freelist_count;").executeQuery()) {
+            if (row.getInt(1) == 0) {
+                return;
+            }
+        } catch (SQLException e) {
+            throw new Gradebook.BackendError(e);
+        }
+        try (Statement vacuum = this.db.createStatement()) {
+            vacuum.execute("VACUUM;");
+        } catch (SQLException e) {
+            throw new Gradebook.BackendError(e);
+        }
+    }
+
+    // The database lives in memory and is only made durable by save_and_encrypt, so the settings that protect an
+    // on-disk database cost time without buying anything. Override with -Dgradebook.pragmas=name=value,... (an
+    // empty value keeps SQLite's defaults).
+    private static final String DEFAULT_PRAGMAS = "journal_mode=MEMORY,synchronous=OFF,temp_store=MEMORY,"
+            + "cache_size=-65536";
+
+    private void applyPragmas() throws SQLException {
+        String pragmas = System.getProperty("gradebook.pragmas", DEFAULT_PRAGMAS);
+        try (Statement sql = this.db.createStatement()) {
+            for (String pragma : pragmas.split(",")) {
+                if (pragma.matches("[a-z_]+=[A-Za-z0-9_-]+")) {
+                    sql.execute("PRAGMA " + pragma + ";");
+                } else if (!pragma.isEmpty()) {
+                    throw new SQLException("Invalid pragma " + pragma);
+                }
+            }
+        }
+    }
+
+    // Each student's weighted total, summed in assignment order exactly as a full recompute would, so that the
+    // stored value always equals the recomputed one. Append a condition on finalGrades.studentID to narrow it.
+    private static final String UPDATE_FINAL_GRADES = "UPDATE finalGrades SET totalGrade = (SELECT SUM((CAST(grade AS REAL) / points) * weight) FROM grades INNER JOIN assignments ON grades.assignmentID = assignments.assignmentID WHERE grades.studentID = finalGrades.studentID)";
+
+    // Schema changes made after the original tables, applied in order. PRAGMA user_version records how many of
+    // them a file has seen. Read-only books are left as they are, since the change could never be saved.
+    private static final String[] MIGRATIONS = { "CREATE INDEX grades_assignmentID ON grades(assignmentID);",
+            "CREATE TABLE finalGrades(studentID INTEGER PRIMARY KEY, totalGrade REAL);",
+            "INSERT INTO finalGrades (studentID) SELECT studentID FROM students;", UPDATE_FINAL_GRADES + ";" };
+
+    // The first version with a maintained finalGrades table. Older read-only books compute totals on the fly.
+    private static final int FINAL_GRADES_VERSION = 4;
+
+    public boolean migrate() throws Gradebook.BackendError {
+        if (this.schemaVersion >= MIGRATIONS.length) {
+            return false;
+        }
+
+        try (Statement sql = this.db.createStatement()) {
+            for (int i = this.schemaVersion; i < MIGRATIONS.length; i++) {
+                sql.execute(MIGRATIONS[i]);
+            }
+            sql.execute("PRAGMA user_version = " + MIGRATIONS.length + ";");
+        } catch (SQLException e) {
+            throw new Gradebook.BackendError(e);
+        }
+        this.schemaVersion = MIGRATIONS.length;
+        return true;
+    }
+
+    private static final int STATEMENT_CACHE_SIZE = 64;
+
+    // Statements are prepared once per gradebook and reused, which matters when many commands run against one
+    // open book. Evicted statements are closed. -Dgradebook.reuseStatements=false re-prepares on every call
+    // instead, for comparison.
+    private PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement statement = this.statements.get(sql);
+        if (statement == null || !this.reuseStatements) {
+            if (statement != null) {
+                statement.close();
+            }
+            statement = this.db.prepareStatement(sql);
+            this.statements.put(sql, statement);
+        }
+        return statement;
+    }
+
+    private interface Binder {
+        void bind(PreparedStatement sql) throws SQLException;
+    }
+
+    // Cursors take their statement out of the cache while they are open, so running the same query in the
+    // meantime prepares a second statement instead of resetting the first. It goes back in when the cursor closes.
+    private <T> GradebookCursor<T> cursor(String sql, Binder binder, GradebookCursor.Mapper<T> mapper)
+            throws SQLException {
+        PreparedStatement statement = this.statements.remove(sql);
+        if (statement == null || !this.reuseStatements) {
+            if (statement != null) {
+                statement.close();
+            }
+            statement = this.db.prepareStatement(sql);
+        }
+
+        try {
+            binder.bind(statement);
+            return new GradebookCursor<T>(statement, mapper, released -> {
+                if (this.reuseStatements && !this.db.isClosed() && !this.statements.containsKey(sql)) {
+                    this.statements.put(sql, released);
+                } else {
+                    released.close();
+                }
+            });
+        } catch (SQLException e) {
+            statement.close();
+            throw e;
+        }
+    }
+
+    public void begin() throws Gradebook.BackendError {
+        try {
+            this.db.setAutoCommit(false);
+        } catch (SQLException e) {
+            throw new Gradebook.BackendError(e);
+        }
+    }
+
+    public void commit() throws Gradebook.BackendError {
+        try {
+            this.db.commit();
+            this.db.setAutoCommit(true);
+        } catch (SQLException e) {
+            throw new Gradebook.BackendError(e);
+        }
+    }
+
+    public void rollback() throws Gradebook.BackendError {
+        try {
+            this.db.rollback();
+            this.db.setAutoCommit(true);
+        } catch (SQLException e) {
+            throw new Gradebook.BackendError(e);
+        }
+    }
+
+    public void savepoint() throws Gradebook.BackendError {
+        try {
+            this.savepoints.push(this.db.setSavepoint());
+        } catch (SQLException e) {
+            throw new Gradebook.BackendError(e);
+        }
+    }
+
+    public void releaseSavepoint() throws Gradebook.BackendError {
+        try {
+            this.db.releaseSavepoint(this.savepoints.pop());
+        } catch (SQLException e) {
+            throw new Gradebook.BackendError(e);
+        }
+    }
+
+    public void rollbackToSavepoint() throws Gradebook.BackendError {
+        try {
+            Savepoint savepoint = this.savepoints.pop();
+            this.db.rollback(savepoint);
+            this.db.releaseSavepoint(savepoint);
+        } catch (SQLException e) {
+            throw new Gradebook.BackendError(e);
+        }
+    }
+
+    public void addAssignment(String name, int points, double weight)
+            throws Gradebook.AppError, Gradebook.BackendError {
+        try {
+            PreparedStatement sql = prepare(
+                    "INSERT INTO assignments (assignmentName, points, weight) VALUES (?1, ?2, ?3);");
+            sql.setString(1, name);
+            sql.setInt(2, points);
+            sql.setDouble(3, weight);
+            sql.execute();
+
+            sql = prepare(
+                    "INSERT INTO grades (studentID, assignmentID, grade) SELECT studentID, (SELECT assignmentID from assignments WHERE assignmentName = ?1), 0 FROM students;");
+            sql.setString(1, name);
+            sql.execute();
+
+            // The new assignment sorts last and adds an exact 0.0 to every total, so only students without any
+            // counted grade yet can change.
+            prepare(UPDATE_FINAL_GRADES + " WHERE totalGrade IS NULL;").execute();
+        } catch (SQLiteException e) {
+            if (e.getResultCode() == SQLiteErrorCode.SQLITE_CONSTRAINT_UNIQUE
+                    || e.getResultCode() == SQLiteErrorCode.SQLITE_CONSTRAINT_TRIGGER) {
+                throw new Gradebook.AppError();
+            } else {
+                throw new Gradebook.BackendError(e);
+            }
+        } catch (SQLException e) {
+            throw new Gradebook.BackendError(e);
+        }
+    }
+
+    public void deleteAssignment(String name) throws Gradebook.AppError, Gradebook.BackendError {
+        try {
+            PreparedStatement sql = prepare("DELETE FROM assignments WHERE assignmentName = ?1;");
+            sql.setString(1, name);
+            if (sql.executeUpdate() == 0) {
+                throw new Gradebook.AppError();
+            }
+
+            prepare(UPDATE_FINAL_GRADES + ";").execute();
+        } catch (SQLException e) {
+            throw new Gradebook.BackendError(e);
+        }
+    }
+
+    public void addStudent(String firstName, String lastName) throws Gradebook.AppError, Gradebook.BackendError {
+        try {
+            PreparedStatement sql = prepare("INSERT INTO students (firstName, lastName) VALUES (?1, ?2);");
+            sql.setString(1, firstName);
+            sql.setString(2, lastName);
+            sql.execute();
+
+            sql = prepare(
+                    "INSERT INTO grades (studentID, assignmentID, grade) SELECT (SELECT studentID from students WHERE firstName = ?1 AND lastName = ?2), assignmentID, 0 FROM assignments;");
+            sql.setString(1, firstName);
+            sql.setString(2, lastName);
+            sql.execute();
+
+            sql = prepare(
+                    "INSERT INTO finalGrades (studentID) SELECT studentID FROM students WHERE firstName = ?1 AND lastName = ?2;");
+            sql.setString(1, firstName);
+            sql.setString(2, lastName);
+            sql.execute();
+            sql = prepare(UPDATE_FINAL_GRADES
+                    + " WHERE studentID = (SELECT studentID FROM students WHERE firstName = ?1 AND lastName = ?2);");
+            sql.setString(1, firstName);
+            sql.setString(2, lastName);
+            sql.execute();
+        } catch (SQLiteException e) {
+            if (e.getResultCode() == SQLiteErrorCode.SQLITE_CONSTRAINT_UNIQUE) {
+                throw new Gradebook.AppError();
+            } else {
+                throw new Gradebook.BackendError(e);
+            }
+        } catch (SQLException e) {
+            throw new Gradebook.BackendError(e);
+        }
+    }
+
+    public void deleteStudent(String firstName, String lastName) throws Gradebook.AppError, Gradebook.BackendError {
+        try {
+            PreparedStatement sql = prepare(
+                    "DELETE FROM finalGrades WHERE studentID = (SELECT studentID FROM students WHERE firstName = ?1 AND lastName = ?2);");
+            sql.setString(1, firstName);
+            sql.setString(2, lastName);
+            sql.execute();
+
+            sql = prepare("DELETE FROM students WHERE firstName = ?1 AND lastName = ?2;");
+            sql.setString(1, firstName);
+            sql.setString(2, lastName);
+            if (sql.executeUpdate() == 0) {
+                throw new Gradebook.AppError();
+            }
+        } catch (SQLException e) {
+            throw new Gradebook.BackendError(e);
+        }
+    }
+
+    public void addGrade(String studentFirstName, String studentLastName, String assignmentName, int grade)
+            throws Gradebook.AppError, Gradebook.BackendError {
+        try {
+            PreparedStatement sql = prepare(
+                    "UPDATE grades SET grade = ?1 WHERE studentID = (SELECT studentID FROM students WHERE firstName = ?2 AND lastName = ?3) AND assignmentID = (SELECT assignmentID FROM assignments WHERE assignmentName = ?4);");
+            sql.setInt(1, grade);
+            sql.setString(2, studentFirstName);
+            sql.setString(3, studentLastName);
+            sql.setString(4, assignmentName);
+            if (sql.executeUpdate() == 0) {
+                throw new Gradebook.AppError();
+            }
+
+            sql = prepare(UPDATE_FINAL_GRADES
+                    + " WHERE studentID = (SELECT studentID FROM students WHERE firstName = ?1 AND lastName = ?2);");
+            sql.setString(1, studentFirstName);
+            sql.setString(2, studentLastName);
+            sql.execute();
+        } catch (SQLiteException e) {
+            if (e.getResultCode() == SQLiteErrorCode.SQLITE_CONSTRAINT_TRIGGER) {
+                throw new Gradebook.AppError();
+            } else {
+                throw new Gradebook.BackendError(e);
+            }
+        } catch (SQLException e) {
+            throw new Gradebook.BackendError(e);
+        }
+    }
+
+    public GradebookCursor<Gradebook.AssignmentGrade> assignmentGrades(String name,
+            boolean alphabetical_or_grade_order) throws Gradebook.AppError, Gradebook.BackendError {
+        String order = "lastName, firstName";
+        if (!alphabetical_or_grade_order) {
+            order = "grade DESC";
+        }
+
+        try {
+            int assignmentID = assignmentID(name);
+            return cursor("SELECT lastName, firstName, grade FROM grades "
+                    + "INNER JOIN students ON grades.studentID = students.studentID "
+                    + "WHERE assignmentID = ?1 ORDER BY " + order + ";", sql -> sql.setInt(1, assignmentID),
+                    row -> new Gradebook.AssignmentGrade(row.getString(1), row.getString(2), row.getInt(3)));
+        } catch (SQLException e) {
+            throw new Gradebook.BackendError(e);
+        }
+    }
+
+    public GradebookCursor<Gradebook.AssignmentGrade> assignmentGrades(String name,
+            boolean alphabetical_or_grade_order, Gradebook.AssignmentGrade after, int limit)
+            throws Gradebook.AppError, Gradebook.BackendError {
+        String where = "(?3 IS NULL OR (lastName, firstName) > (?3, ?4))";
+        String order = "lastName, firstName";
+        if (!alphabetical_or_grade_order) {
+            where = "(?3 IS NULL OR grade < ?2 OR (grade = ?2 AND (lastName, firstName) > (?3, ?4)))";
+            order = "grade DESC, lastName, firstName";
+        }
+
+        try {
+            int assignmentID = assignmentID(name);
+            return cursor("SELECT lastName, firstName, grade FROM grades "
+                    + "INNER JOIN students ON grades.studentID = students.studentID "
+                    + "WHERE assignmentID = ?1 AND " + where + " ORDER BY " + order + " LIMIT ?5;", sql -> {
+                        sql.setInt(1, assignmentID);
+                        sql.setInt(2, after == null ? 0 : after.grade());
+                        sql.setString(3, after == null ? null : after.lastName());
+                        sql.setString(4, after == null ? null : after.firstName());
+                        sql.setInt(5, limit);
+                    }, row -> new Gradebook.AssignmentGrade(row.getString(1), row.getString(2), row.getInt(3)));
+        } catch (SQLException e) {
+            throw new Gradebook.BackendError(e);
+        }
+    }
+
+    public GradebookCursor<Gradebook.StudentGrade> studentGrades(String firstName, String lastName)
+            throws Gradebook.AppError, Gradebook.BackendError {
+        try {
+            int studentID = studentID(firstName, lastName);
+            return cursor(
+                    "SELECT assignmentName, grade FROM grades INNER JOIN assignments ON grades.assignmentID = assignments.assignmentID WHERE studentID = ?1;",
+                    sql -> sql.setInt(1, studentID),
+                    row -> new Gradebook.StudentGrade(row.getString(1), row.getInt(2)));
+        } catch (SQLException e) {
+            throw new Gradebook.BackendError(e);
+        }
+    }
+
+    public GradebookCursor<Gradebook.FinalGrade> finalGrades(boolean alphabetical_or_grade_order)
+            throws Gradebook.BackendError {
+        String order = "lastName, firstName";
+        if (!alphabetical_or_grade_order) {
+            order = "totalGrade DESC";
+        }
+
+        try {
+            return cursor(finalGradesQuery() + " ORDER BY " + order + ";", sql -> sql.clearParameters(),
+                    row -> new Gradebook.FinalGrade(row.getString(1), row.getString(2), row.getDouble(3)));
+        } catch (SQLException e) {
+            throw new Gradebook.BackendError(e);
+        }
+    }
+
+    public GradebookCursor<Gradebook.FinalGrade> finalGrades(boolean alphabetical_or_grade_order,
+            Gradebook.FinalGrade after, int limit) throws Gradebook.BackendError {
+        String where = "?2 IS NULL OR (lastName, firstName) > (?2, ?3)";
+        String order = "lastName, firstName";
+        if (!alphabetical_or_grade_order) {
+            where = "?2 IS NULL OR total < ?1 OR (total = ?1 AND (lastName, firstName) > (?2, ?3))";
+            order = "total DESC, lastName, firstName";
+        }
+
+        try {
+            return cursor("SELECT lastName, firstName, total FROM (SELECT lastName, firstName, IFNULL(totalGrade, 0.0) AS total FROM ("
+                    + finalGradesQuery() + ")) WHERE " + where + " ORDER BY " + order + " LIMIT ?4;", sql -> {
+                        sql.setDouble(1, after == null ? 0.0 : after.totalGrade());
+                        sql.setString(2, after == null ? null : after.lastName());
+                        sql.setString(3, after == null ? null : after.firstName());
+                        sql.setInt(4, limit);
+                    }, row -> new Gradebook.FinalGrade(row.getString(1), row.getString(2), row.getDouble(3)));
+        } catch (SQLException e) {
+            throw new Gradebook.BackendError(e);
+        }
+    }
+
+    private String finalGradesQuery() {
+        if (this.schemaVersion >= FINAL_GRADES_VERSION) {
+            return "SELECT lastName, firstName, totalGrade FROM students INNER JOIN finalGrades ON finalGrades.studentID = students.studentID";
+        } else {
+            return "SELECT lastname, firstName, (SELECT SUM((CAST(grade AS REAL) / points) * weight) FROM grades INNER JOIN assignments ON grades.assignmentID = assignments.assignmentID WHERE grades.studentID = students.studentID) AS totalGrade FROM students";
+        }
+    }
+
+    private int assignmentID(String name) throws Gradebook.AppError, SQLException {
+        PreparedStatement sql = prepare("SELECT assignmentID FROM assignments WHERE assignmentName = ?1;");
+        sql.setString(1, name);
+        try (ResultSet row = sql.executeQuery()) {
+            if (!row.isBeforeFirst()) {
+                throw new Gradebook.AppError();
+            }
+            return row.getInt(1);
+        }
+    }
+
+    private int studentID(String firstName, String lastName) throws Gradebook.AppError, SQLException {
+        PreparedStatement sql = prepare("SELECT studentID FROM students WHERE firstName = ?1 AND lastName = ?2;");
+        sql.setString(1, firstName);
+        sql.setString(2, lastName);
+        try (ResultSet row = sql.executeQuery()) {
+            if (!row.isBeforeFirst()) {
+                throw new Gradebook.AppError();
+            }
+            return row.getInt(1);
+        }
+    }
+
+    public List<GradebookStatistics.Summary> statistics(boolean parallel) throws Gradebook.BackendError {
+        try {
+            List<String> names = new ArrayList<String>();
+            List<Integer> points = new ArrayList<Integer>();
+            int[] index = new int[0];
+            try (ResultSet row = prepare("SELECT assignmentID, assignmentName, points FROM assignments ORDER BY assignmentID;")
+                    .executeQuery()) {
+                while (row.next()) {
+                    int assignmentID = row.getInt(1);
+                    if (assignmentID >= index.length) {
+                        int length = index.length;
+                        index = Arrays.copyOf(index, Math.max(assignmentID + 1, length * 2));
+                        Arrays.fill(index, length, index.length, -1);
+                    }
+                    index[assignmentID] = names.size();
+                    names.add(row.getString(2));
+                    points.add(row.getInt(3));
+                }
+            }
+
+            // One sequential scan of the grades table is several times faster than walking it in assignment order
+            // through the index, so rows are grouped by assignment here instead. Grades left behind by deleted
+            // students or assignments are skipped, as every other query skips them.
+            BitSet studentIDs = new BitSet();
+            try (ResultSet row = prepare("SELECT studentID FROM students;").executeQuery()) {
+                while (row.next()) {
+                    studentIDs.set(row.getInt(1));
+                }
+            }
+
+            int[] assignmentOf = new int[1024];
+            int[] values = new int[1024];
+            int[] offsets = new int[names.size() + 1];
+            int count = 0;
+            try (ResultSet row = prepare("SELECT studentID, assignmentID, grade FROM grades;").executeQuery()) {
+                while (row.next()) {
+                    int assignmentID = row.getInt(2);
+                    int assignment = assignmentID < index.length ? index[assignmentID] : -1;
+                    if (assignment < 0 || !studentIDs.get(row.getInt(1))) {
+                        continue;
+                    }
+                    if (count == values.length) {
+                        assignmentOf = Arrays.copyOf(assignmentOf, count * 2);
+                        values = Arrays.copyOf(values, count * 2);
+                    }
+                    assignmentOf[count] = assignment;
+                    values[count++] = row.getInt(3);
+                    offsets[assignment + 1]++;
+                }
+            }
+            for (int i = 1; i < offsets.length; i++) {
+                offsets[i] += offsets[i - 1];
+            }
+            int[] next = Arrays.copyOf(offsets, names.size());
+            int[] grades = new int[count];
+            for (int i = 0; i < count; i++) {
+                grades[next[assignmentOf[i]]++] = values[i];
+            }
+
+            double[] finals = new double[1024];
+            int students = 0;
+            try (GradebookCursor<Gradebook.FinalGrade> totals = finalGrades(true)) {
+                while (totals.hasNext()) {
+                    if (students == finals.length) {
+                        finals = Arrays.copyOf(finals, students * 2);
+                    }
+                    finals[students++] = totals.next().totalGrade();
+                }
+            }
+
+            return GradebookStatistics.compute(names.toArray(new String[0]),
+                    points.stream().mapToInt(Integer::intValue).toArray(), offsets, grades,
+                    Arrays.copyOf(finals, students), parallel);
+        } catch (GradebookCursor.Failure failure) {
+            throw failure.getCause();
+        } catch (SQLException e) {
+            throw new Gradebook.BackendError(e);
+        }
+    }
+
+    // Runs sql and discards any rows it returns, returning how many there were. Used by GradebookBench.
+    long drain(String sql) throws Gradebook.BackendError {
+        try {
+            PreparedStatement statement = prepare(sql);
+            long rows = 0;
+            if (statement.execute()) {
+                try (ResultSet row = statement.getResultSet()) {
+                    while (row.next()) {
+                        rows++;
+                    }
+                }
+            }
+            return rows;
+        } catch (SQLException e) {
+            throw new Gradebook.BackendError(e);
+        }
+    }
+
+    // The steps of SQLite's plan for sql, one per line, indented by depth. Used by GradebookBench.
+    List<String> queryPlan(String sql) throws Gradebook.BackendError {
+        try (Statement statement = this.db.createStatement();
+                ResultSet row = statement.executeQuery("EXPLAIN QUERY PLAN " + sql)) {
+            Map<Integer, Integer> depth = new HashMap<Integer, Integer>();
+            List<String> plan = new ArrayList<String>();
+            while (row.next()) {
+                int level = depth.getOrDefault(row.getInt("parent"), -1) + 1;
+                depth.put(row.getInt("id"), level);
+                plan.add("  ".repeat(level) + row.getString("detail"));
+            }
+            return plan;
+        } catch (SQLException e) {
+            throw new Gradebook.BackendError(e);
+        }
+    }
+
+    public int checkFinalGrades(PrintStream out) throws Gradebook.BackendError {
+        if (this.schemaVersion < FINAL_GRADES_VERSION) {
+            return 0;
+        }
+
+        try {
+            int mismatches = 0;
+            try (ResultSet row = prepare(
+                    "SELECT lastName, firstName, totalGrade, computed FROM (SELECT lastName, firstName, finalGrades.studentID AS stored, totalGrade, (SELECT SUM((CAST(grade AS REAL) / points) * weight) FROM grades INNER JOIN assignments ON grades.assignmentID = assignments.assignmentID WHERE grades.studentID = students.studentID) AS computed FROM students LEFT JOIN finalGrades ON finalGrades.studentID = students.studentID) WHERE stored IS NULL OR totalGrade IS NOT computed ORDER BY lastName, firstName;")
+                    .executeQuery()) {
+                while (row.next()) {
+                    out.println("(" + row.getString(1) + ", " + row.getString(2) + ", " + row.getObject(3) + ", "
+                            + row.getObject(4) + ")");
+                    mismatches++;
+                }
+            }
+
+            try (ResultSet row = prepare(
+                    "SELECT studentID, totalGrade FROM finalGrades WHERE studentID NOT IN (SELECT studentID FROM students);")
+                    .executeQuery()) {
+                while (row.next()) {
+                    out.println("(" + row.getInt(1) + ", " + row.getObject(2) + ")");
+                    mismatches++;
+                }
+            }
+            return mismatches;
+        } catch (SQLException e) {
+            throw new Gradebook.BackendError(e);
+        }
+    }
+
+    private static final int IMPORT_BATCH_SIZE = 4096;
+
+    public void importCsv(BufferedReader in) throws Gradebook.AppError, Gradebook.BackendError {
+        boolean committed = false;
+        begin();
+        try {
+            Map<String, Integer> students = new HashMap<String, Integer>();
+            try (ResultSet row = prepare("SELECT studentID, firstName, lastName FROM students;").executeQuery()) {
+                while (row.next()) {
+                    students.put(row.getString(2) + " " + row.getString(3), row.getInt(1));
+                }
+            }
+
+            // The weights are summed as the trigger sums them, in assignmentID order, so that a line the trigger would
+            // reject is caught here and reported by number.
+            Map<String, int[]> assignments = new HashMap<String, int[]>();
+            Sum totalWeight = new Sum();
+            try (ResultSet row = prepare(
+                    "SELECT assignmentID, assignmentName, points, weight FROM assignments ORDER BY assignmentID;")
+                    .executeQuery()) {
+                while (row.next()) {
+                    assignments.put(row.getString(2), new int[] { row.getInt(1), row.getInt(3) });
+                    totalWeight.add(row.getDouble(4));
+                }
+            }
+
+            int firstNewStudent = nextID("students");
+            int firstNewAssignment = nextID("assignments");
+            int nextStudent = firstNewStudent;
+            int nextAssignment = firstNewAssignment;
+
+            PreparedStatement insertAssignment = prepare(
+                    "INSERT INTO assignments (assignmentID, assignmentName, points, weight) VALUES (?1, ?2, ?3, ?4);");
+            PreparedStatement insertStudent = prepare(
+                    "INSERT INTO students (studentID, firstName, lastName) VALUES (?1, ?2, ?3);");
+            PreparedStatement upsertGrade = prepare(
+                    "INSERT INTO grades (studentID, assignmentID, grade) VALUES (?1, ?2, ?3) ON CONFLICT (studentID, assignmentID) DO UPDATE SET grade = excluded.grade;");
+            // The statements are cached, so drop anything a failed import left queued.
+            insertAssignment.clearBatch();
+            insertStudent.clearBatch();
+            upsertGrade.clearBatch();
+            int pending = 0;
+
+            long number = 0;
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] fields = Gradebook.csvRow(line, ++number);
+                if (fields == null) {
+                    continue;
+                }
+
+                if (fields[0].equals("assignment")) {
+                    int points = Integer.parseInt(fields[2]);
+                    double weight = Double.parseDouble(fields[3]);
+                    // A NULL sum, for no assignments, lets anything through.
+                    if (assignments.containsKey(fields[1]) || totalWeight.value() + weight > 1.0) {
+                        throw new Gradebook.LineError(number);
+                    }
+
+                    assignments.put(fields[1], new int[] { nextAssignment, points });
+                    totalWeight.add(weight);
+                    insertAssignment.setInt(1, nextAssignment++);
+                    insertAssignment.setString(2, fields[1]);
+                    insertAssignment.setInt(3, points);
+                    insertAssignment.setDouble(4, weight);
+                    insertAssignment.addBatch();
+                } else if (fields[0].equals("student")) {
+                    if (students.putIfAbsent(fields[1] + " " + fields[2], nextStudent) != null) {
+                        throw new Gradebook.LineError(number);
+                    }
+
+                    insertStudent.setInt(1, nextStudent++);
+                    insertStudent.setString(2, fields[1]);
+                    insertStudent.setString(3, fields[2]);
+                    insertStudent.addBatch();
+                } else {
+                    Integer studentID = students.get(fields[1] + " " + fields[2]);
+                    int[] assignment = assignments.get(fields[3]);
+                    int grade = Integer.parseInt(fields[4]);
+                    if (studentID == null || assignment == null || grade > assignment[1]) {
+                        throw new Gradebook.LineError(number);
+                    }
+
+                    upsertGrade.setInt(1, studentID);
+                    upsertGrade.setInt(2, assignment[0]);
+                    upsertGrade.setInt(3, grade);
+                    upsertGrade.addBatch();
+                }
+
+                if (++pending == IMPORT_BATCH_SIZE) {
+                    insertAssignment.executeBatch();
+                    insertStudent.executeBatch();
+                    upsertGrade.executeBatch();
+                    pending = 0;
+                }
+            }
+            insertAssignment.executeBatch();
+            insertStudent.executeBatch();
+            upsertGrade.executeBatch();
+
+            PreparedStatement sql = prepare(
+                    "INSERT OR IGNORE INTO grades (studentID, assignmentID, grade) SELECT studentID, assignmentID, 0 FROM students, assignments WHERE studentID >= ?1 OR assignmentID >= ?2;");
+            sql.setInt(1, firstNewStudent);
+            sql.setInt(2, firstNewAssignment);
+            sql.execute();
+
+            sql = prepare(
+                    "INSERT INTO finalGrades (studentID) SELECT studentID FROM students WHERE studentID >= ?1;");
+            sql.setInt(1, firstNewStudent);
+            sql.execute();
+            prepare(UPDATE_FINAL_GRADES + ";").execute();
+
+            commit();
+            committed = true;
+        } catch (SQLiteException e) {
+            if (e.getResultCode() == SQLiteErrorCode.SQLITE_CONSTRAINT_UNIQUE
+                    || e.getResultCode() == SQLiteErrorCode.SQLITE_CONSTRAINT_TRIGGER) {
+                throw new Gradebook.AppError();
+            } else {
+                throw new Gradebook.BackendError(e);
+            }
+        } catch (IOException | SQLException e) {
+            throw new Gradebook.BackendError(e);
+        } finally {
+            if (!committed) {
+                rollback();
+            }
+        }
+    }
+
+    private int nextID(String table) throws SQLException {
+        PreparedStatement sql = prepare("SELECT seq FROM sqlite_sequence WHERE name = ?1;");
+        sql.setString(1, table);
+        try (ResultSet row = sql.executeQuery()) {
+            return row.next() ? row.getInt(1) + 1 : 1;
+        }
+    }
+
+    public void exportCsv(Writer out) throws Gradebook.BackendError {
+        try {
+            try (ResultSet row = prepare(
+                    "SELECT assignmentName, points, weight FROM assignments ORDER BY assignmentID;").executeQuery()) {
+                while (row.next()) {
+                    out.write("assignment," + row.getString(1) + "," + row.getInt(2) + "," + row.getDouble(3) + "\n");
+                }
+            }
+
+            try (ResultSet row = prepare("SELECT firstName, lastName FROM students ORDER BY studentID;")
+                    .executeQuery()) {
+                while (row.next()) {
+                    out.write("student," + row.getString(1) + "," + row.getString(2) + "\n");
+                }
+            }
+
+            try (ResultSet row = prepare("SELECT firstName, lastName, assignmentName, grade FROM grades "
+                    + "INNER JOIN students ON grades.studentID = students.studentID "
+                    + "INNER JOIN assignments ON grades.assignmentID = assignments.assignmentID "
+                    + "ORDER BY grades.studentID, grades.assignmentID;").executeQuery()) {
+                while (row.next()) {
+                    out.write("grade," + row.getString(1) + "," + row.getString(2) + "," + row.getString(3) + ","
+                            + row.getInt(4) + "\n");
+                }
+            }
+            out.flush();
+        } catch (IOException | SQLException e) {
+            throw new Gradebook.BackendError(e);
+        }
+    }
+}
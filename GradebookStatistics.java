@@ -0,0 +1,69 @@
+import java.util.*;
+import java.util.stream.*;
+
+// Class statistics computed from primitive columns rather than SQL: each assignment and the final grades are
+// summarized by a separate fork-join task.
+public class GradebookStatistics {
+    public static final int BUCKETS = 10;
+
+    // Percentiles use the nearest rank, so they are always one of the values. The histogram counts values by
+    // tenths of full marks, with full marks in the last bucket. The standard deviation is the population one.
+    public record Summary(String name, int count, double mean, double stddev, double min, double p25, double median,
+            double p75, double p90, double max, int[] histogram) {
+    }
+
+    // The grades of assignment i are grades[offsets[i]] up to offsets[i + 1]; finals holds every final grade.
+    public static List<Summary> compute(String[] names, int[] points, int[] offsets, int[] grades, double[] finals,
+            boolean parallel) {
+        IntStream tasks = IntStream.rangeClosed(0, names.length);
+        if (parallel) {
+            tasks = tasks.parallel();
+        }
+
+        return tasks.mapToObj(i -> {
+            if (i == names.length) {
+                double[] values = finals.clone();
+                if (parallel) {
+                    Arrays.parallelSort(values);
+                } else {
+                    Arrays.sort(values);
+                }
+                return summarize("final grades", values, 1.0);
+            }
+
+            double[] values = new double[offsets[i + 1] - offsets[i]];
+            for (int j = 0; j < values.length; j++) {
+                values[j] = grades[offsets[i] + j];
+            }
+            Arrays.sort(values);
+            return summarize(names[i], values, points[i]);
+        }).collect(Collectors.toList());
+    }
+
+    private static Summary summarize(String name, double[] sorted, double full) {
+        int[] histogram = new int[BUCKETS];
+        double sum = 0.0;
+        for (double value : sorted) {
+            sum += value;
+            int bucket = full > 0 ? (int) (value / full * BUCKETS) : 0;
+            histogram[Math.max(0, Math.min(BUCKETS - 1, bucket))]++;
+        }
+        double mean = sum / sorted.length;
+
+        double squares = 0.0;
+        for (double value : sorted) {
+            squares += (value - mean) * (value - mean);
+        }
+
+        return new Summary(name, sorted.length, mean, Math.sqrt(squares / sorted.length), percentile(sorted, 0.0),
+                percentile(sorted, 0.25), percentile(sorted, 0.50), percentile(sorted, 0.75), percentile(sorted, 0.90),
+                percentile(sorted, 1.0), histogram);
+    }
+
+    private static double percentile(double[] sorted, double p) {
+        if (sorted.length == 0) {
+            return Double.NaN;
+        }
+        return sorted[Math.max(0, (int) Math.ceil(p * sorted.length) - 1)];
+    }
+}
@@ -0,0 +1,414 @@
+import at.favre.lib.bytes.Bytes;
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
+import com.beust.jcommander.Parameters;
+import java.io.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.*;
+import java.util.concurrent.*;
+
+// A directory of gradebooks, one per course section, each under its own key, with bulk operations that run over
+// every book on a bounded pool of threads. Each book is reported on separately, with how long it took, and one that
+// fails does not stop the others.
+//
+// The keys live in a keyring file kept apart from the books, one "<book> <key>..." line per book. A book has a
+// second, newer key only while it is being rotated: the new key is recorded before the book is re-encrypted and the
+// old one dropped after, so a crash in between never loses a book. Books are opened with their newest key first.
+// The keyring is written by replacing it in one rename, and changes to it serialize on <keyring>.lock.
+public class GradebookStore {
+    @Parameters(commandDescription = "Create new gradebooks in the store")
+    private static class CreateCommand {
+        @Parameter(names = "-N", description = "Gradebook filename", validateWith = CLIUtils.GradebookFileNameValidator.class, required = true)
+        private List<String> gradebooks = new ArrayList<String>();
+    }
+
+    @Parameters(commandDescription = "Decrypt every gradebook and check its final grades")
+    private static class VerifyCommand {
+    }
+
+    @Parameters(commandDescription = "Export every gradebook as <directory>/<gradebook>.csv")
+    private static class ExportCommand {
+        @Parameter(names = "-O", description = "Output directory", required = true)
+        private List<String> directory = new ArrayList<String>();
+    }
+
+    @Parameters(commandDescription = "Write the final grades of every gradebook to <directory>/<gradebook>.final")
+    private static class PrintFinalCommand {
+        @Parameter(names = "-O", description = "Output directory", required = true)
+        private List<String> directory = new ArrayList<String>();
+
+        @Parameter(names = "-A", description = "Display in order of student name")
+        private boolean alphabeticalOrder;
+
+        @Parameter(names = "-G", description = "Display in order of student grade")
+        private boolean gradeOrder;
+    }
+
+    @Parameters(commandDescription = "Re-encrypt every gradebook under a new key")
+    private static class RotateCommand {
+    }
+
+    @Parameter(names = "-D", description = "Gradebook directory", required = true)
+    private String directory;
+
+    @Parameter(names = "-R", description = "Keyring file", required = true)
+    private String keyring;
+
+    @Parameter(names = "-T", description = "Worker threads")
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    // The outcome for one book: "ok", "invalid" for a book that does not decrypt or authenticate under any of its
+    // keys, "mismatch" for stored final grades that disagree with the grades, or "failed".
+    public record Result(String gradebook, String status, long nanos) {
+    }
+
+    private interface Operation {
+        String apply(String gradebook, List<String> keys) throws Gradebook.AppError, Gradebook.BackendError;
+    }
+
+    private final Map<String, List<String>> keys = new LinkedHashMap<String, List<String>>();
+
+    public static GradebookStore open(Path directory, Path keyring, int threads)
+            throws Gradebook.AppError, Gradebook.BackendError {
+        GradebookStore store = new GradebookStore();
+        store.directory = directory.toString();
+        store.keyring = keyring.toString();
+        store.threads = threads;
+        store.readKeyring();
+        return store;
+    }
+
+    public Set<String> gradebooks() {
+        return Collections.unmodifiableSet(this.keys.keySet());
+    }
+
+    // Creates each book under a fresh key. A name that is already taken, in the keyring or on disk, is invalid.
+    public List<Result> create(List<String> gradebooks) throws Gradebook.AppError, Gradebook.BackendError {
+        List<Result> results = new ArrayList<Result>();
+        FileChannel lock = GradebookFile.lock(Paths.get(this.keyring));
+        try {
+            readKeyring();
+            for (String gradebook : gradebooks) {
+                long start = System.nanoTime();
+                String status = "ok";
+                try {
+                    if (this.keys.containsKey(gradebook)) {
+                        throw new Gradebook.AppError();
+                    }
+                    String key = Gradebook.create(path(gradebook));
+                    this.keys.put(gradebook, new ArrayList<String>(List.of(key)));
+                    try {
+                        writeKeyring();
+                    } catch (Gradebook.BackendError | RuntimeException e) {
+                        // A book whose key was never recorded can never be opened; take it back out.
+                        this.keys.remove(gradebook);
+                        delete(gradebook);
+                        throw e;
+                    }
+                } catch (Gradebook.AppError ignored) {
+                    status = "invalid";
+                } catch (Gradebook.BackendError | RuntimeException ignored) {
+                    status = "failed";
+                }
+                results.add(new Result(gradebook, status, System.nanoTime() - start));
+            }
+        } finally {
+            release(lock);
+        }
+        return results;
+    }
+
+    // Decrypts and authenticates every book, replays its log and recomputes its final grades.
+    public List<Result> verify() {
+        PrintStream sink = new PrintStream(OutputStream.nullOutputStream());
+        return run((gradebook, keys) -> {
+            Gradebook gbook = load(gradebook, keys, true);
+            try {
+                return gbook.checkFinalGrades(sink) == 0 ? "ok" : "mismatch";
+            } finally {
+                gbook.close();
+            }
+        });
+    }
+
+    public List<Result> exportCsv(Path directory) throws Gradebook.BackendError {
+        createDirectories(directory);
+        return run((gradebook, keys) -> {
+            Gradebook gbook = load(gradebook, keys, true);
+            try (Writer out = Files.newBufferedWriter(directory.resolve(gradebook + ".csv"))) {
+                gbook.exportCsv(out);
+            } catch (IOException e) {
+                throw new Gradebook.BackendError(e);
+            } finally {
+                gbook.close();
+            }
+            return "ok";
+        });
+    }
+
+    public List<Result> printFinalGrades(Path directory, boolean alphabetical_or_grade_order)
+            throws Gradebook.BackendError {
+        createDirectories(directory);
+        return run((gradebook, keys) -> {
+            Gradebook gbook = load(gradebook, keys, true);
+            try (OutputStream out = Files.newOutputStream(directory.resolve(gradebook + ".final"))) {
+                gbook.printFinalGrades(alphabetical_or_grade_order, out);
+            } catch (IOException e) {
+                throw new Gradebook.BackendError(e);
+            } finally {
+                gbook.close();
+            }
+            return "ok";
+        });
+    }
+
+    // Moves every book to a fresh key, several books at a time, each streamed from its old key to the new one. Books
+    // that fail keep every key they had, plus the new one, so that whichever version ended up on disk can still be
+    // opened and the next rotation picks them up again.
+    public List<Result> rotate() throws Gradebook.AppError, Gradebook.BackendError {
+        FileChannel lock = GradebookFile.lock(Paths.get(this.keyring));
+        try {
+            readKeyring();
+            for (List<String> keys : this.keys.values()) {
+                keys.add(Bytes.wrap(GradebookFile.generateKey().getEncoded()).encodeHex());
+            }
+            writeKeyring();
+
+            List<Result> results = run((gradebook, keys) -> {
+                String newKey = CLIUtils.getLast(keys);
+                for (int i = keys.size() - 2; i >= 0; i--) {
+                    try {
+                        Gradebook.rekey(path(gradebook), keys.get(i), newKey);
+                        return "ok";
+                    } catch (Gradebook.AppError appError) {
+                        if (i == 0) {
+                            throw appError;
+                        }
+                    }
+                }
+                throw new Gradebook.AppError();
+            });
+
+            for (Result result : results) {
+                if (result.status().equals("ok")) {
+                    List<String> keys = this.keys.get(result.gradebook());
+                    keys.subList(0, keys.size() - 1).clear();
+                }
+            }
+            writeKeyring();
+            return results;
+        } finally {
+            release(lock);
+        }
+    }
+
+    // Runs operation on every book, at most threads at a time, and reports on each in keyring order.
+    private List<Result> run(Operation operation) {
+        ExecutorService workers = Executors.newFixedThreadPool(Math.max(1, this.threads));
+        try {
+            Map<String, Future<Result>> pending = new LinkedHashMap<String, Future<Result>>();
+            for (Map.Entry<String, List<String>> entry : this.keys.entrySet()) {
+                String gradebook = entry.getKey();
+                List<String> keys = List.copyOf(entry.getValue());
+                pending.put(gradebook, workers.submit(() -> {
+                    long start = System.nanoTime();
+                    GradebookMetrics.begin("store " + gradebook);
+                    String status;
+                    Exception failure = null;
+                    try {
+                        status = operation.apply(gradebook, keys);
+                    } catch (Gradebook.AppError appError) {
+                        status = "invalid";
+                        failure = appError;
+                    } catch (Gradebook.BackendError | RuntimeException e) {
+                        e.printStackTrace();
+                        status = "failed";
+                        failure = e;
+                    }
+                    GradebookMetrics.end(failure);
+                    return new Result(gradebook, status, System.nanoTime() - start);
+                }));
+            }
+
+            List<Result> results = new ArrayList<Result>();
+            for (Map.Entry<String, Future<Result>> result : pending.entrySet()) {
+                try {
+                    results.add(result.getValue().get());
+                } catch (ExecutionException e) {
+                    e.getCause().printStackTrace();
+                    results.add(new Result(result.getKey(), "failed", 0));
+                } catch (InterruptedException ignored) {
+                    results.add(new Result(result.getKey(), "failed", 0));
+                }
+            }
+            return results;
+        } finally {
+            workers.shutdown();
+        }
+    }
+
+    // Opens a book with the first of its keys, newest first, that it authenticates under.
+    private Gradebook load(String gradebook, List<String> keys, boolean readOnly)
+            throws Gradebook.AppError, Gradebook.BackendError {
+        for (int i = keys.size() - 1; i >= 0; i--) {
+            try {
+                return Gradebook.load_and_decrypt(path(gradebook), keys.get(i), readOnly);
+            } catch (Gradebook.AppError appError) {
+                if (i == 0) {
+                    throw appError;
+                }
+            }
+        }
+        throw new Gradebook.AppError();
+    }
+
+    private String path(String gradebook) {
+        return Paths.get(this.directory).resolve(gradebook).toString();
+    }
+
+    private void readKeyring() throws Gradebook.AppError, Gradebook.BackendError {
+        this.keys.clear();
+        Path keyring = Paths.get(this.keyring);
+        if (!Files.exists(keyring)) {
+            return;
+        }
+
+        try {
+            for (String line : Files.readAllLines(keyring, StandardCharsets.US_ASCII)) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                String[] fields = line.split(" ");
+                new CLIUtils.GradebookFileNameValidator().validate("gradebook", fields[0]);
+                if (fields.length < 2 || this.keys.containsKey(fields[0])) {
+                    throw new Gradebook.AppError();
+                }
+                List<String> keys = new ArrayList<String>();
+                for (int i = 1; i < fields.length; i++) {
+                    new CLIUtils.KeyValidator().validate("key", fields[i]);
+                    keys.add(fields[i]);
+                }
+                this.keys.put(fields[0], keys);
+            }
+        } catch (ParameterException ignored) {
+            throw new Gradebook.AppError();
+        } catch (IOException e) {
+            throw new Gradebook.BackendError(e);
+        }
+    }
+
+    // Replaces the keyring with the keys in memory. The new keyring is readable by its owner only, where the file
+    // system allows it.
+    private void writeKeyring() throws Gradebook.BackendError {
+        Path keyring = Paths.get(this.keyring);
+        Path temp = keyring.resolveSibling(keyring.getFileName() + ".tmp");
+        StringBuilder lines = new StringBuilder();
+        for (Map.Entry<String, List<String>> entry : this.keys.entrySet()) {
+            lines.append(entry.getKey());
+            for (String key : entry.getValue()) {
+                lines.append(' ').append(key);
+            }
+            lines.append('\n');
+        }
+
+        try {
+            Files.deleteIfExists(temp);
+            Files.createFile(temp);
+            try {
+                Files.setPosixFilePermissions(temp, PosixFilePermissions.fromString("rw-------"));
+            } catch (UnsupportedOperationException ignored) {
+            }
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                out.write(StandardCharsets.US_ASCII.encode(lines.toString()));
+                out.force(true);
+            }
+            Files.move(temp, keyring, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new Gradebook.BackendError(e);
+        }
+    }
+
+    // Removes a book with its log and lock file. Failures are only printed, since this cleans up after another one.
+    private void delete(String gradebook) {
+        Path file = Paths.get(path(gradebook));
+        for (String suffix : new String[] { "", ".log", ".lock" }) {
+            try {
+                Files.deleteIfExists(file.resolveSibling(file.getFileName() + suffix));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static void createDirectories(Path directory) throws Gradebook.BackendError {
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException e) {
+            throw new Gradebook.BackendError(e);
+        }
+    }
+
+    private static void release(FileChannel lock) throws Gradebook.BackendError {
+        try {
+            lock.close();
+        } catch (IOException e) {
+            throw new Gradebook.BackendError(e);
+        }
+    }
+
+    // Prints one "<gradebook> <status> <milliseconds>" line per book. Exits with 1 if any book was not ok.
+    public static void main(String[] args) {
+        GradebookStore app = new GradebookStore();
+        CreateCommand cr = new CreateCommand();
+        VerifyCommand ve = new VerifyCommand();
+        ExportCommand ex = new ExportCommand();
+        PrintFinalCommand pf = new PrintFinalCommand();
+        RotateCommand rk = new RotateCommand();
+        int exitCode = 0;
+
+        try {
+            JCommander cmd = JCommander.newBuilder().addObject(app).addCommand("-C", cr).addCommand("-V", ve)
+                    .addCommand("-EX", ex).addCommand("-PF", pf).addCommand("-RK", rk).build();
+            cmd.parse(args);
+            if (cmd.getParsedCommand() == null) {
+                throw new ParameterException("No action specified");
+            }
+            if (app.threads < 1) {
+                throw new ParameterException("Parameter -T is invalid");
+            }
+
+            GradebookStore store = open(Paths.get(app.directory), Paths.get(app.keyring), app.threads);
+            List<Result> results = switch (cmd.getParsedCommand()) {
+                case "-C" -> store.create(cr.gradebooks);
+                case "-V" -> store.verify();
+                case "-EX" -> store.exportCsv(Paths.get(CLIUtils.getLast(ex.directory)));
+                case "-PF" -> {
+                    if (pf.alphabeticalOrder == pf.gradeOrder) {
+                        throw new ParameterException("Exactly one order flag must be specified");
+                    }
+                    yield store.printFinalGrades(Paths.get(CLIUtils.getLast(pf.directory)), pf.alphabeticalOrder);
+                }
+                default -> store.rotate();
+            };
+
+            for (Result result : results) {
+                System.out.printf("%s %s %.3f%n", result.gradebook(), result.status(), result.nanos() / 1e6);
+                if (!result.status().equals("ok")) {
+                    exitCode = 1;
+                }
+            }
+        } catch (ParameterException | Gradebook.AppError appError) {
+            System.out.println("invalid");
+            exitCode = 255;
+        } catch (Gradebook.BackendError backendError) {
+            backendError.printStackTrace();
+            exitCode = 1;
+        }
+
+        System.exit(exitCode);
+    }
+}
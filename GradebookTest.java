@@ -0,0 +1,859 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import javax.crypto.SecretKey;
+
+// Checks of behaviour that spans backends, processes or files, run with `make test`, or one of them with
+// `make test TEST="<test> [seed]"`. Every failed check is listed, and the run exits with status 1 if there was any.
+public class GradebookTest {
+    private static int failures = 0;
+    private static int checks = 0;
+
+    public static void main(String[] args) throws Exception {
+        String test = args.length > 0 ? args[0] : "all";
+        if (test.equals("stress-writer")) {
+            stressWriter(args[1], args[2], Integer.parseInt(args[3]));
+            return;
+        }
+        if (test.equals("crash-writer")) {
+            crashWriter(args[1], args[2], Integer.parseInt(args[3]));
+            return;
+        }
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : 1;
+
+        Path dir = Files.createTempDirectory("gradebook-test");
+        try {
+            if (test.equals("differential") || test.equals("all")) {
+                testDifferential(dir, seed);
+            }
+            if (test.equals("stress") || test.equals("all")) {
+                testStress(dir);
+            }
+            if (test.equals("csv") || test.equals("all")) {
+                testCsv(dir, seed);
+            }
+            if (test.equals("readers") || test.equals("all")) {
+                testReaders(dir);
+            }
+            if (test.equals("golden") || test.equals("all")) {
+                testGolden(dir);
+                testRows(dir, seed);
+                testFields();
+            }
+            if (test.equals("crash") || test.equals("all")) {
+                testCrash(dir, seed);
+                testLogTamper(dir);
+                testLogRemoved(dir);
+                testFileTamper(dir, seed);
+            }
+        } finally {
+            delete(dir);
+        }
+
+        System.out.println(checks + " checks, " + failures + " failed");
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    private static synchronized void check(boolean ok, String what) {
+        checks++;
+        if (!ok) {
+            failures++;
+            System.out.println("FAIL " + what);
+        }
+    }
+
+    // Runs the same random operations against a SQLite book and a columnar one, and compares the outcome of each
+    // and everything either book prints after it. Every so often both are saved and loaded again, and the columnar
+    // book must print the same after the round trip.
+    private static void testDifferential(Path dir, long seed) throws Exception {
+        for (long run = seed; run < seed + 4; run++) {
+            Random random = new Random(run);
+            String sqliteName = dir.resolve("differential-sqlite").toString();
+            String columnarName = dir.resolve("differential-columnar").toString();
+            String sqliteKey = create(sqliteName, "sqlite");
+            String columnarKey = create(columnarName, "columnar");
+            Gradebook sqlite = Gradebook.load_and_decrypt(sqliteName, sqliteKey);
+            Gradebook columnar = Gradebook.load_and_decrypt(columnarName, columnarKey);
+
+            for (int step = 0; step < 300; step++) {
+                Gradebook.Mutation operation = randomOperation(random);
+                String where = "differential seed " + run + " step " + step;
+                String expected = outcome(sqlite, operation);
+                check(expected.equals(outcome(columnar, operation)), where + ": outcome");
+                check(sqlite.isModified() == columnar.isModified(), where + ": modified");
+
+                if (random.nextInt(10) == 0) {
+                    String before = dump(columnar);
+                    sqlite.save_and_encrypt();
+                    columnar.save_and_encrypt();
+                    sqlite = Gradebook.load_and_decrypt(sqliteName, sqliteKey);
+                    columnar = Gradebook.load_and_decrypt(columnarName, columnarKey);
+                    check(before.equals(dump(columnar)), where + ": columnar changed across save and load");
+                }
+                if (!dump(sqlite).equals(dump(columnar))) {
+                    check(false, where + ": books differ");
+                    break;
+                }
+            }
+            sqlite.close();
+            columnar.close();
+            delete(dir);
+            Files.createDirectories(dir);
+        }
+    }
+
+    // Fills books of either backend at random, exports each, and imports the export into a new book of each
+    // backend. The new book must print everything the way the original does, and export the same CSV. An import
+    // that fails on its last line must leave the book as it was.
+    private static void testCsv(Path dir, long seed) throws Exception {
+        for (long run = seed; run < seed + 4; run++) {
+            for (String backend : new String[] { "sqlite", "columnar" }) {
+                Random random = new Random(run);
+                String name = dir.resolve("csv-" + backend).toString();
+                String key = create(name, backend);
+                Gradebook source = Gradebook.load_and_decrypt(name, key);
+                for (int step = 0; step < 200; step++) {
+                    outcome(source, randomOperation(random));
+                }
+                StringWriter csv = new StringWriter();
+                source.exportCsv(csv);
+                String expected = dump(source);
+                source.close();
+
+                for (String target : new String[] { "sqlite", "columnar" }) {
+                    String where = "csv seed " + run + " from " + backend + " to " + target;
+                    String copyName = dir.resolve("csv-copy-" + target).toString();
+                    String copyKey = create(copyName, target);
+                    Gradebook copy = Gradebook.load_and_decrypt(copyName, copyKey);
+                    check(outcome(copy, g -> g.importCsv(new BufferedReader(new StringReader(csv.toString()))))
+                            .equals("ok"), where + ": import failed");
+                    copy.save_and_encrypt();
+                    copy = Gradebook.load_and_decrypt(copyName, copyKey);
+                    check(dump(copy).equals(expected), where + ": books differ");
+                    StringWriter again = new StringWriter();
+                    copy.exportCsv(again);
+                    check(again.toString().equals(csv.toString()), where + ": exports differ");
+
+                    String bad = "assignment,Csv,10,0\nstudent,Zz,Csv\ngrade,Zz,Csv,Csv,1\nbogus\n";
+                    String rejected = outcome(copy, g -> g.importCsv(new BufferedReader(new StringReader(bad))));
+                    check(rejected.equals("invalid line 4"), where + ": bad import " + rejected);
+                    check(dump(copy).equals(expected), where + ": bad import changed the book");
+                    copy.close();
+                }
+                delete(dir);
+                Files.createDirectories(dir);
+            }
+        }
+    }
+
+    private static final String GOLDEN = """
+            (Brown, Ann, 47)
+            (Lee, Zo\u00eb, 49)
+            (Ng, Bo, 0)
+            (Lee, Zo\u00eb, 49)
+            (Brown, Ann, 47)
+            (Ng, Bo, 0)
+            (hw1, 47)
+            (exam, 90)
+            (Brown, Ann, 0.657)
+            (Lee, Zo\u00eb, 0.7898333333333334)
+            (Ng, Bo, 0.0)
+            (Lee, Zo\u00eb, 0.7898333333333334)
+            (Brown, Ann, 0.657)
+            (Ng, Bo, 0.0)
+            """;
+
+    // Prints a fixed book of each backend and compares it with output recorded from the string concatenation that
+    // the rows used to be printed with.
+    private static void testGolden(Path dir) throws Exception {
+        for (String backend : new String[] { "sqlite", "columnar" }) {
+            String name = dir.resolve("golden-" + backend).toString();
+            Gradebook gbook = Gradebook.load_and_decrypt(name, create(name, backend));
+            gbook.addAssignment("hw1", 50, 0.3);
+            gbook.addAssignment("exam", 120, 0.5);
+            gbook.addStudent("Ann", "Brown");
+            gbook.addStudent("Zo\u00eb", "Lee");
+            gbook.addStudent("Bo", "Ng");
+            gbook.addGrade("Ann", "Brown", "hw1", 47);
+            gbook.addGrade("Ann", "Brown", "exam", 90);
+            gbook.addGrade("Zo\u00eb", "Lee", "hw1", 49);
+            gbook.addGrade("Zo\u00eb", "Lee", "exam", 119);
+            gbook.addGrade("Bo", "Ng", "hw1", 0);
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            gbook.printAssignmentGrades("hw1", true, out);
+            gbook.printAssignmentGrades("hw1", false, out);
+            gbook.printStudentGrades("Ann", "Brown", out);
+            gbook.printFinalGrades(true, out);
+            gbook.printFinalGrades(false, out);
+            gbook.close();
+            byte[] expected = GOLDEN.replace("\n", System.lineSeparator()).getBytes();
+            check(Arrays.equals(out.toByteArray(), expected), "golden " + backend + ":" + System.lineSeparator() + out);
+        }
+    }
+
+    // Prints random books, and one too large for the output buffer, and compares every row with the string
+    // concatenation the rows used to be printed with, fed by the same cursors.
+    private static void testRows(Path dir, long seed) throws Exception {
+        for (String backend : new String[] { "sqlite", "columnar" }) {
+            for (long run = seed; run < seed + 5; run++) {
+                String name = dir.resolve("rows-" + backend + "-" + run).toString();
+                Gradebook gbook = Gradebook.load_and_decrypt(name, create(name, backend));
+                Random random = new Random(run);
+                if (run == seed) {
+                    gbook.addAssignment("A0", 40, 0.4);
+                    for (int i = 0; i < 3000; i++) {
+                        gbook.addStudent(crashName(i), i % 7 == 0 ? "\u00d8rsted" : "Rows");
+                        gbook.addGrade(crashName(i), i % 7 == 0 ? "\u00d8rsted" : "Rows", "A0", i % 41);
+                    }
+                }
+                for (int step = 0; step < 200; step++) {
+                    outcome(gbook, randomOperation(random));
+                }
+                checkRows(gbook, "rows " + backend + " seed " + run);
+                gbook.close();
+            }
+        }
+    }
+
+    private static void checkRows(Gradebook gbook, String where) throws Exception {
+        for (int a = 0; a < 10; a++) {
+            for (boolean order : new boolean[] { true, false }) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                ByteArrayOutputStream expected = new ByteArrayOutputStream();
+                PrintStream print = new PrintStream(expected);
+                try (GradebookCursor<Gradebook.AssignmentGrade> grades = gbook.assignmentGrades("A" + a, order)) {
+                    while (grades.hasNext()) {
+                        Gradebook.AssignmentGrade grade = grades.next();
+                        print.println("(" + grade.lastName() + ", " + grade.firstName() + ", " + grade.grade() + ")");
+                    }
+                    gbook.printAssignmentGrades("A" + a, order, out);
+                } catch (Gradebook.AppError e) {
+                    continue;
+                }
+                print.flush();
+                check(Arrays.equals(out.toByteArray(), expected.toByteArray()), where + ": assignment A" + a);
+            }
+        }
+        for (String student : STUDENTS) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            PrintStream print = new PrintStream(expected);
+            try (GradebookCursor<Gradebook.StudentGrade> grades = gbook.studentGrades(student, "X")) {
+                while (grades.hasNext()) {
+                    Gradebook.StudentGrade grade = grades.next();
+                    print.println("(" + grade.assignmentName() + ", " + grade.grade() + ")");
+                }
+                gbook.printStudentGrades(student, "X", out);
+            } catch (Gradebook.AppError e) {
+                continue;
+            }
+            print.flush();
+            check(Arrays.equals(out.toByteArray(), expected.toByteArray()), where + ": student " + student);
+        }
+        for (boolean order : new boolean[] { true, false }) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            PrintStream print = new PrintStream(expected);
+            try (GradebookCursor<Gradebook.FinalGrade> grades = gbook.finalGrades(order)) {
+                while (grades.hasNext()) {
+                    Gradebook.FinalGrade grade = grades.next();
+                    print.println("(" + grade.lastName() + ", " + grade.firstName() + ", " + grade.totalGrade() + ")");
+                }
+            }
+            gbook.printFinalGrades(order, out);
+            print.flush();
+            check(Arrays.equals(out.toByteArray(), expected.toByteArray()), where + ": final grades");
+        }
+    }
+
+    // Formats single rows of awkward values and compares them with the string concatenation.
+    private static void testFields() throws Exception {
+        double[] doubles = { 0.0, -0.0, 1.0, 0.1, 1 / 3.0, 2 / 3.0, 0.6450000000000001, 1e-3, 9.999e-4, 1e7, 9999999.5,
+                1e-300, Double.MIN_VALUE, Double.MIN_NORMAL, Double.MAX_VALUE, Double.NaN, Double.POSITIVE_INFINITY,
+                Double.NEGATIVE_INFINITY, -123456789.125 };
+        int[] ints = { 0, 7, -1, 10, -10, 1000000000, Integer.MAX_VALUE, Integer.MIN_VALUE };
+        String[] texts = { "", "Ann", "Zo\u00eb", "\u540d\u524d", null };
+        GradebookOutput rows = new GradebookOutput();
+        for (double value : doubles) {
+            for (int number : ints) {
+                for (String text : texts) {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    rows.to(out).beginRow();
+                    rows.field(text);
+                    rows.field(number);
+                    rows.field(value);
+                    rows.endRow();
+                    rows.flush();
+                    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+                    PrintStream print = new PrintStream(expected);
+                    print.println("(" + text + ", " + number + ", " + value + ")");
+                    print.flush();
+                    check(Arrays.equals(out.toByteArray(), expected.toByteArray()),
+                            "field " + text + ", " + number + ", " + value + ": " + out);
+                }
+            }
+        }
+    }
+
+    // Queries final grades from several threads through GradebookReaders while a writer keeps moving marks between
+    // pairs of students. A move keeps the sum of the final grades, so a query that saw half of one would add up to
+    // something else.
+    private static void testReaders(Path dir) throws Exception {
+        for (String backend : new String[] { "sqlite", "columnar" }) {
+            String name = dir.resolve("readers-" + backend).toString();
+            Gradebook gbook = Gradebook.load_and_decrypt(name, create(name, backend));
+            gbook.addAssignment("A0", 100, 1.0);
+            for (int i = 0; i < 200; i++) {
+                gbook.addStudent(crashName(i), "Readers");
+                gbook.addGrade(crashName(i), "Readers", "A0", 50);
+            }
+            GradebookReaders readers = new GradebookReaders(gbook, 4);
+            double[] expected = { 0 };
+            readers.read(g -> expected[0] = sumFinalGrades(g));
+
+            String where = "readers " + backend;
+            long deadline = System.nanoTime() + 1000000000L;
+            Thread writer = new Thread(() -> {
+                Random random = new Random(1);
+                try {
+                    while (System.nanoTime() < deadline) {
+                        int pair = random.nextInt(100) * 2;
+                        int grade = random.nextInt(101);
+                        readers.write(g -> {
+                            g.addGrade(crashName(pair), "Readers", "A0", grade);
+                            g.addGrade(crashName(pair + 1), "Readers", "A0", 100 - grade);
+                        });
+                    }
+                } catch (Exception e) {
+                    check(false, where + ": writer failed with " + e);
+                }
+            });
+            int[] queries = new int[4];
+            int[] torn = new int[4];
+            List<Thread> threads = new ArrayList<Thread>(List.of(writer));
+            for (int t = 0; t < queries.length; t++) {
+                int thread = t;
+                threads.add(new Thread(() -> {
+                    try {
+                        while (System.nanoTime() < deadline) {
+                            readers.read(g -> {
+                                if (Math.abs(sumFinalGrades(g) - expected[0]) > 1e-6) {
+                                    torn[thread]++;
+                                }
+                            });
+                            queries[thread]++;
+                        }
+                    } catch (Exception e) {
+                        check(false, where + ": query failed with " + e);
+                    }
+                }));
+            }
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            readers.close();
+            check(Arrays.stream(torn).sum() == 0, where + ": " + Arrays.stream(torn).sum() + " of "
+                    + Arrays.stream(queries).sum() + " queries saw a torn move");
+            check(Arrays.stream(queries).allMatch(n -> n > 0), where + ": a reader thread ran no query");
+        }
+    }
+
+    private static double sumFinalGrades(Gradebook gbook) throws Gradebook.BackendError {
+        double sum = 0;
+        try (GradebookCursor<Gradebook.FinalGrade> grades = gbook.finalGrades(true)) {
+            while (grades.hasNext()) {
+                sum += grades.next().totalGrade();
+            }
+        } catch (GradebookCursor.Failure failure) {
+            throw failure.getCause();
+        }
+        return sum;
+    }
+
+    private static final int WRITERS = 4;
+    private static final int WRITES = 25;
+
+    // Has several processes add students to one book at once, each under the writer lock, while this one keeps loading
+    // it read-only without the lock; once with plain saves and once with a log small enough to be folded often.
+    // Every read must succeed and see no fewer students than the one before, and no student may be lost.
+    private static void testStress(Path dir) throws Exception {
+        for (boolean log : new boolean[] { false, true }) {
+            String name = dir.resolve(log ? "stress-log" : "stress").toString();
+            String key = create(name, "sqlite");
+            List<Process> writers = new ArrayList<Process>();
+            for (int id = 0; id < WRITERS; id++) {
+                writers.add(new ProcessBuilder("java", "-cp", System.getProperty("java.class.path"),
+                        "-Dgradebook.log=" + log, "-Dgradebook.logLimit=2000", "GradebookTest", "stress-writer", name,
+                        key, String.valueOf(id))
+                        .redirectErrorStream(true).redirectOutput(dir.resolve("writer-" + id + ".out").toFile())
+                        .start());
+            }
+
+            String where = "stress" + (log ? " with log" : "");
+            int reads = 0;
+            int seen = 0;
+            while (writers.stream().anyMatch(Process::isAlive)) {
+                try {
+                    int count = firstNames(Gradebook.load_and_decrypt(name, key, true)).size();
+                    check(count >= seen, where + ": read " + count + " students after " + seen);
+                    seen = count;
+                } catch (Exception e) {
+                    check(false, where + ": read failed with " + e);
+                }
+                reads++;
+            }
+            for (int id = 0; id < WRITERS; id++) {
+                boolean ok = writers.get(id).waitFor() == 0;
+                check(ok, where + ": writer " + id + " failed");
+                if (!ok) {
+                    System.out.print(Files.readString(dir.resolve("writer-" + id + ".out")));
+                }
+            }
+            check(firstNames(Gradebook.load_and_decrypt(name, key, true)).size() == WRITERS * WRITES,
+                    where + ": students lost over " + reads + " reads");
+        }
+    }
+
+    // One of the processes testStress starts: adds its students one save at a time.
+    private static void stressWriter(String name, String key, int id) throws Exception {
+        for (int i = 0; i < WRITES; i++) {
+            Gradebook gbook = Gradebook.load_and_decrypt(name, key);
+            gbook.addStudent("W" + (char) ('a' + id) + (char) ('a' + i), "Stress");
+            gbook.save_and_encrypt();
+        }
+    }
+
+    // Kills a process that keeps logging students to a book at random moments, folding the log every so often. What
+    // survives each kill must be the students it added, in order, up to some point, and the next process carries on
+    // from there.
+    private static void testCrash(Path dir, long seed) throws Exception {
+        Random random = new Random(seed);
+        String name = dir.resolve("crash").toString();
+        String key = create(name, "sqlite");
+        int added = 0;
+        for (int round = 0; round < 8; round++) {
+            Process writer = new ProcessBuilder("java", "-cp", System.getProperty("java.class.path"),
+                    "-Dgradebook.log=true", "-Dgradebook.logLimit=3000", "GradebookTest", "crash-writer", name, key,
+                    String.valueOf(added))
+                    .redirectError(ProcessBuilder.Redirect.DISCARD).start();
+            // Killed only once it has the book loaded, so that every round writes something.
+            new BufferedReader(new InputStreamReader(writer.getInputStream(), StandardCharsets.UTF_8)).readLine();
+            Thread.sleep(random.nextInt(300));
+            writer.destroyForcibly().waitFor();
+
+            String where = "crash round " + round;
+            Set<String> students = new HashSet<String>(firstNames(Gradebook.load_and_decrypt(name, key, true)));
+            int count = students.size();
+            for (int i = 0; i < count; i++) {
+                if (!students.contains(crashName(i))) {
+                    check(false, where + ": student " + i + " of " + count + " lost");
+                    break;
+                }
+            }
+            check(count >= added, where + ": " + count + " students left of " + added);
+            added = count;
+        }
+        check(added > 0, "crash: nothing was written");
+    }
+
+    // The process testCrash kills: adds students one flush at a time until it is killed.
+    private static void crashWriter(String name, String key, int from) throws Exception {
+        Gradebook gbook = Gradebook.load_and_decrypt(name, key);
+        System.out.println("loaded");
+        for (int i = from; ; i++) {
+            gbook.addStudent(crashName(i), "Crash");
+            gbook.flush();
+        }
+    }
+
+    private static String crashName(int i) {
+        StringBuilder name = new StringBuilder("C");
+        do {
+            name.append((char) ('a' + i % 26));
+            i /= 26;
+        } while (i > 0);
+        return name.toString();
+    }
+
+    private static final int LOG_HEADER_SIZE = 21;
+    private static final int COMMIT_SIZE = 36;
+
+    // Damages a log of five records, with the newest commit in the second slot, in the ways a crash can and the ways
+    // only tampering can. A crash may leave a partial or garbled record after the newest commit, or a torn newest
+    // commit, which are ignored; anything else must fail the load, whether or not the reader holds the lock.
+    private static void testLogTamper(Path dir) throws Exception {
+        String name = dir.resolve("tamper").toString();
+        Path log = Paths.get(name + ".log");
+        String key = create(name, "sqlite");
+        List<Integer> ends = new ArrayList<Integer>();
+        System.setProperty("gradebook.log", "true");
+        try {
+            for (int i = 0; i < 5; i++) {
+                Gradebook gbook = Gradebook.load_and_decrypt(name, key);
+                gbook.addStudent("S" + (char) ('a' + i), "Tamper");
+                gbook.save_and_encrypt();
+                ends.add((int) Files.size(log));
+            }
+        } finally {
+            System.clearProperty("gradebook.log");
+        }
+        byte[] intact = Files.readAllBytes(log);
+        int header = LOG_HEADER_SIZE + 2 * COMMIT_SIZE;
+        int newest = LOG_HEADER_SIZE + COMMIT_SIZE;
+
+        checkLog(name, key, log, intact, "[Sa, Sb, Sc, Sd, Se]", "intact");
+        checkLog(name, key, log, Arrays.copyOf(intact, ends.get(3)), "invalid", "last record cut");
+        checkLog(name, key, log, Arrays.copyOf(intact, ends.get(0)), "invalid", "cut to the first record");
+        checkLog(name, key, log, Arrays.copyOf(intact, header), "invalid", "cut to the header");
+        checkLog(name, key, log, Arrays.copyOf(intact, intact.length - 3), "invalid", "last record cut short");
+        checkLog(name, key, log, flip(intact, intact.length - 3), "invalid", "last record flipped");
+        checkLog(name, key, log, flip(intact, header + 30), "invalid", "first record flipped");
+        checkLog(name, key, log, flip(intact, LOG_HEADER_SIZE + 20), "invalid", "previous commit flipped");
+        checkLog(name, key, log, fill(intact, LOG_HEADER_SIZE, COMMIT_SIZE), "invalid", "previous commit zeroed");
+        checkLog(name, key, log, fill(intact, newest, COMMIT_SIZE), "invalid", "newest commit zeroed");
+        checkLog(name, key, log, flip(Arrays.copyOf(intact, ends.get(3)), newest + 20), "invalid",
+                "last record cut and newest commit torn");
+        byte[] partial = Arrays.copyOf(intact, intact.length + 7);
+        partial[intact.length + 3] = 9;
+        checkLog(name, key, log, partial, "[Sa, Sb, Sc, Sd, Se]", "partial record after the last");
+        checkLog(name, key, log, flip(intact, newest + 20), "[Sa, Sb, Sc, Sd, Se]", "newest commit torn");
+        // A crash that extended the file before the record reached the disk leaves a full-length record of garbage
+        // or zeros after the last one.
+        byte[] garbage = Arrays.copyOf(intact, intact.length + 4 + 12 + 30 + 16);
+        ByteBuffer.wrap(garbage, intact.length, 4).putInt(30);
+        for (int i = intact.length + 4; i < garbage.length; i++) {
+            garbage[i] = (byte) (i * 31);
+        }
+        checkLog(name, key, log, garbage, "[Sa, Sb, Sc, Sd, Se]", "garbled record after the last");
+        checkLog(name, key, log, Arrays.copyOf(intact, intact.length + 64), "[Sa, Sb, Sc, Sd, Se]",
+                "zeros after the last record");
+        // A reader without the lock may have caught the commit and the record after it both in flight. A writer
+        // knows that nothing is, and a record only follows a commit that was completed, so it was tampered with.
+        Files.write(log, flip(garbage, newest + 20));
+        check(outcome(null, g -> Gradebook.load_and_decrypt(name, key).close()).equals("invalid"),
+                "log garbled record and newest commit torn under the lock");
+
+        // A writer overwrites a garbled record, and rewrites a torn newest commit, before appending.
+        Files.write(log, garbage);
+        logStudent(name, key, "Sf");
+        checkLog(name, key, log, Files.readAllBytes(log), "[Sa, Sb, Sc, Sd, Se, Sf]", "appended after garbage");
+        Files.write(log, flip(intact, newest + 20));
+        logStudent(name, key, "Sf");
+        logStudent(name, key, "Sg");
+        checkLog(name, key, log, Files.readAllBytes(log), "[Sa, Sb, Sc, Sd, Se, Sf, Sg]",
+                "appended after a torn commit");
+    }
+
+    private static void logStudent(String name, String key, String student) throws Exception {
+        System.setProperty("gradebook.log", "true");
+        try {
+            Gradebook gbook = Gradebook.load_and_decrypt(name, key);
+            gbook.addStudent(student, "Tamper");
+            gbook.save_and_encrypt();
+        } finally {
+            System.clearProperty("gradebook.log");
+        }
+    }
+
+    // A writer folding the log into a new snapshot removes it, so a reader can find the log gone at any point
+    // before opening it. That must read as no log, and a read-only load must then read the new snapshot rather than
+    // fail. The first part opens a log that another thread keeps removing and putting back, so that some opens find
+    // it gone; the second races a writer that folds on every other save.
+    private static void testLogRemoved(Path dir) throws Exception {
+        Path book = dir.resolve("removed");
+        Path log = dir.resolve("removed.log");
+        byte[] header = Arrays.copyOf("SGBL".getBytes(StandardCharsets.US_ASCII), LOG_HEADER_SIZE + 2 * COMMIT_SIZE);
+        header[4] = 2;
+        SecretKey logKey = GradebookFile.generateKey();
+        long deadline = System.nanoTime() + 1000000000L;
+        Thread remover = new Thread(() -> {
+            try {
+                while (System.nanoTime() < deadline) {
+                    Files.write(log, header);
+                    Files.deleteIfExists(log);
+                }
+            } catch (IOException e) {
+                check(false, "log remover failed with " + e);
+            }
+        });
+        remover.start();
+        int opens = 0;
+        int failed = 0;
+        while (remover.isAlive()) {
+            try {
+                GradebookLog.open(book, logKey, GradebookFile.Aead.CHACHA20_POLY1305, new byte[16], true,
+                        new ArrayList<byte[]>());
+            } catch (Gradebook.AppError | Gradebook.BackendError e) {
+                failed++;
+            }
+            opens++;
+        }
+        remover.join();
+        check(failed == 0, "log removed while it was opened: " + failed + " of " + opens + " opens failed");
+
+        String name = dir.resolve("folding").toString();
+        String key = create(name, "sqlite");
+        Thread writer = new Thread(() -> {
+            try {
+                Gradebook gbook = Gradebook.load_and_decrypt(name, key);
+                for (int i = 0; i < 300; i++) {
+                    gbook.addStudent(crashName(i), "Fold");
+                    gbook.flush();
+                }
+                gbook.close();
+            } catch (Exception e) {
+                check(false, "folding writer failed with " + e);
+            }
+        });
+        System.setProperty("gradebook.log", "true");
+        System.setProperty("gradebook.logLimit", "150");
+        try {
+            writer.start();
+            int seen = 0;
+            while (writer.isAlive()) {
+                try {
+                    int count = firstNames(Gradebook.load_and_decrypt(name, key, true)).size();
+                    check(count >= seen, "folding: read " + count + " students after " + seen);
+                    seen = count;
+                } catch (Exception e) {
+                    check(false, "folding: read failed with " + e);
+                }
+            }
+            writer.join();
+        } finally {
+            System.clearProperty("gradebook.log");
+            System.clearProperty("gradebook.logLimit");
+        }
+        check(firstNames(Gradebook.load_and_decrypt(name, key, true)).size() == 300, "folding: students lost");
+    }
+
+    private static void checkLog(String name, String key, Path log, byte[] contents, String expected, String what)
+            throws Exception {
+        Files.write(log, contents);
+        for (boolean readOnly : new boolean[] { true, false }) {
+            String found;
+            try {
+                List<String> students = firstNames(Gradebook.load_and_decrypt(name, key, readOnly));
+                Collections.sort(students);
+                found = students.toString();
+            } catch (Gradebook.AppError e) {
+                found = "invalid";
+            }
+            check(found.equals(expected), "log " + what + (readOnly ? "" : " under the lock") + ": " + found);
+        }
+    }
+
+    // Damages a saved book, uncompressed and compressed, a byte or a cut at a time. Every damaged file must fail
+    // the load as invalid, never load or fail some other way.
+    private static void testFileTamper(Path dir, long seed) throws Exception {
+        Random random = new Random(seed);
+        for (boolean compressed : new boolean[] { false, true }) {
+            String name = dir.resolve(compressed ? "tamper-compressed" : "tamper-file").toString();
+            String key = create(name, "sqlite");
+            System.setProperty("gradebook.compress", String.valueOf(compressed));
+            try {
+                Gradebook gbook = Gradebook.load_and_decrypt(name, key);
+                gbook.addAssignment("A0", 10, 0.5);
+                for (int i = 0; i < 200; i++) {
+                    gbook.addStudent(crashName(i), "Tamper");
+                    gbook.addGrade(crashName(i), "Tamper", "A0", i % 10);
+                }
+                gbook.save_and_encrypt();
+            } finally {
+                System.clearProperty("gradebook.compress");
+            }
+            Path file = Paths.get(name);
+            byte[] intact = Files.readAllBytes(file);
+            String where = "file" + (compressed ? " compressed" : "");
+
+            List<Integer> offsets = new ArrayList<Integer>(List.of(0, 4, 5, 20, 60, 100, intact.length - 1));
+            for (int i = 0; i < 20; i++) {
+                offsets.add(random.nextInt(intact.length));
+            }
+            for (int offset : offsets) {
+                checkInvalid(name, key, file, flip(intact, offset), where + " flipped at " + offset);
+            }
+            for (int length : new int[] { 0, 3, 12, 100, intact.length / 2, intact.length - 1 }) {
+                checkInvalid(name, key, file, Arrays.copyOf(intact, length), where + " cut to " + length);
+            }
+            Files.write(file, intact);
+            check(firstNames(Gradebook.load_and_decrypt(name, key, true)).size() == 200, where + " restored");
+        }
+    }
+
+    private static void checkInvalid(String name, String key, Path file, byte[] contents, String what)
+            throws Exception {
+        Files.write(file, contents);
+        String found;
+        try {
+            Gradebook.load_and_decrypt(name, key, true).close();
+            found = "loaded";
+        } catch (Gradebook.AppError e) {
+            found = "invalid";
+        } catch (Gradebook.BackendError | RuntimeException e) {
+            found = e.toString();
+        }
+        check(found.equals("invalid"), what + ": " + found);
+    }
+
+    private static byte[] flip(byte[] bytes, int offset) {
+        byte[] flipped = bytes.clone();
+        flipped[offset] ^= 1;
+        return flipped;
+    }
+
+    private static byte[] fill(byte[] bytes, int offset, int length) {
+        byte[] filled = bytes.clone();
+        Arrays.fill(filled, offset, offset + length, (byte) 0);
+        return filled;
+    }
+
+    private static List<String> firstNames(Gradebook gbook) throws Exception {
+        List<String> names = new ArrayList<String>();
+        try (GradebookCursor<Gradebook.FinalGrade> grades = gbook.finalGrades(true)) {
+            while (grades.hasNext()) {
+                names.add(grades.next().firstName());
+            }
+        } finally {
+            gbook.close();
+        }
+        return names;
+    }
+
+    private static final String[] STUDENTS = { "Aa", "Bb", "Cc", "Dd", "Ee", "Ff", "Gg", "Hh" };
+    private static final double[] WEIGHTS = { 0.1, 0.2, 0.3, 0.05, 0.15, 0.0, 1 / 3.0, 0.7, 0.01, 0.25 };
+
+    private static Gradebook.Mutation randomOperation(Random random) {
+        String student = STUDENTS[random.nextInt(STUDENTS.length)];
+        String assignment = "A" + random.nextInt(10);
+        int points = random.nextInt(3) == 0 ? 0 : 1 + random.nextInt(50);
+        double weight = WEIGHTS[random.nextInt(WEIGHTS.length)];
+        int grade = random.nextInt(60);
+        boolean commit = random.nextBoolean();
+        String csv = randomCsv(random);
+
+        switch (random.nextInt(9)) {
+            case 0:
+                return gbook -> gbook.addAssignment(assignment, points, weight);
+            case 1:
+                return gbook -> gbook.deleteAssignment(assignment);
+            case 2:
+                return gbook -> gbook.addStudent(student, "X");
+            case 3:
+                return gbook -> gbook.deleteStudent(student, "X");
+            case 4:
+            case 5:
+                return gbook -> gbook.addGrade(student, "X", assignment, grade);
+            case 6:
+                return gbook -> gbook.importCsv(new BufferedReader(new StringReader(csv)));
+            case 7:
+                // A transaction that may roll back, holding a savepoint that fails halfway.
+                return gbook -> {
+                    gbook.begin();
+                    try {
+                        try {
+                            gbook.atomically(inner -> {
+                                inner.addGrade(student, "X", assignment, grade % 20);
+                                inner.addStudent("Zz", "X");
+                                inner.addGrade(student, "X", assignment + "n", 1);
+                            });
+                        } catch (Gradebook.AppError ignored) {
+                        }
+                        gbook.addAssignment(assignment + "b", points, weight);
+                    } finally {
+                        if (commit) {
+                            gbook.commit();
+                        } else {
+                            gbook.rollback();
+                        }
+                    }
+                };
+            default:
+                return gbook -> gbook.flush();
+        }
+    }
+
+    private static String randomCsv(Random random) {
+        StringBuilder csv = new StringBuilder();
+        for (int i = random.nextInt(8); i > 0; i--) {
+            String student = STUDENTS[random.nextInt(STUDENTS.length)] + (random.nextBoolean() ? ",X" : ",Y");
+            switch (random.nextInt(4)) {
+                case 0 -> csv.append("assignment,A").append(random.nextInt(10)).append(',').append(random.nextInt(40))
+                        .append(',').append(WEIGHTS[random.nextInt(WEIGHTS.length)]).append('\n');
+                case 1 -> csv.append("student,").append(student).append('\n');
+                default -> csv.append("grade,").append(student).append(",A").append(random.nextInt(10)).append(',')
+                        .append(random.nextInt(30)).append('\n');
+            }
+            if (random.nextInt(30) == 0) {
+                csv.append("bogus\n");
+            }
+        }
+        return csv.toString();
+    }
+
+    private static String outcome(Gradebook gbook, Gradebook.Mutation operation) {
+        try {
+            operation.apply(gbook);
+            return "ok";
+        } catch (Gradebook.LineError e) {
+            return "invalid line " + e.line;
+        } catch (Gradebook.AppError e) {
+            return "invalid";
+        } catch (Gradebook.BackendError | RuntimeException e) {
+            return e.toString();
+        }
+    }
+
+    // Everything the book prints, in every order, with its statistics and its CSV export.
+    private static String dump(Gradebook gbook) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PrintStream print = new PrintStream(out, true, StandardCharsets.UTF_8);
+        for (int a = 0; a < 10; a++) {
+            String assignment = "A" + a;
+            for (String suffix : new String[] { "", "b" }) {
+                print.println(outcome(gbook, g -> g.printAssignmentGrades(assignment + suffix, true, out)));
+                print.println(outcome(gbook, g -> g.printAssignmentGrades(assignment + suffix, false, out)));
+            }
+        }
+        for (String student : STUDENTS) {
+            print.println(outcome(gbook, g -> g.printStudentGrades(student, "X", out)));
+            print.println(outcome(gbook, g -> g.printStudentGrades(student, "Y", out)));
+        }
+        print.println(outcome(gbook, g -> g.printStudentGrades("Zz", "X", out)));
+        print.println(outcome(gbook, g -> g.printFinalGrades(true, out)));
+        print.println(outcome(gbook, g -> g.printFinalGrades(false, out)));
+        print.println(outcome(gbook, g -> g.printStatistics(out)));
+        StringWriter csv = new StringWriter();
+        print.println(outcome(gbook, g -> g.exportCsv(csv)));
+        print.println(csv);
+        print.println(outcome(gbook, g -> print.println("mismatches " + g.checkFinalGrades(print))));
+        return out.toString(StandardCharsets.UTF_8);
+    }
+
+    private static String create(String name, String backend) throws Exception {
+        System.setProperty("gradebook.backend", backend);
+        try {
+            return Gradebook.create(name);
+        } finally {
+            System.clearProperty("gradebook.backend");
+        }
+    }
+
+    private static void delete(Path dir) throws IOException {
+        File[] files = dir.toFile().listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.toFile().delete();
+    }
+}
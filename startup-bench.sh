@@ -0,0 +1,46 @@
+#!/bin/bash
+# Wall time of each tool run through its wrapper, as p50/p99 over RUNS runs (default 20). Run it from the build
+# directory after `make all` and again after `make startup` to compare the plain and startup-optimized wrappers.
+RUNS=${1:-20}
+BOOK=startup-bench.gb
+
+now() {
+    date +%s%N
+}
+
+# Prints "<name> p50 <ms> p99 <ms>" for the nanosecond samples that follow the name.
+report() {
+    local name=$1
+    shift
+    printf '%s\n' "$@" | sort -n | awk -v name="$name" '
+        { t[NR] = $1 }
+        END {
+            p50 = t[int((NR - 1) * 0.50) + 1]
+            p99 = t[int((NR - 1) * 0.99) + 1]
+            printf "%-18s p50 %7.1f ms  p99 %7.1f ms\n", name, p50 / 1e6, p99 / 1e6
+        }'
+}
+
+setup=()
+add=()
+display=()
+for ((i = 0; i < RUNS; i++)); do
+    rm -f $BOOK $BOOK.lock $BOOK.log
+
+    start=$(now)
+    KEY=$(./setup -N $BOOK | cut -d' ' -f2)
+    setup+=($(($(now) - start)))
+
+    start=$(now)
+    ./gradebookadd -N $BOOK -K $KEY -AS -FN Ann -LN Lee > /dev/null
+    add+=($(($(now) - start)))
+
+    start=$(now)
+    ./gradebookdisplay -N $BOOK -K $KEY -PF -A > /dev/null
+    display+=($(($(now) - start)))
+done
+rm -f $BOOK $BOOK.lock $BOOK.log
+
+report setup "${setup[@]}"
+report gradebookadd "${add[@]}"
+report gradebookdisplay "${display[@]}"